@@ -12,7 +12,8 @@
 #	It computes the proper paths from it's parent directory...
 #
 # Usage:
-#   rfid_reader.ps1 [--debug] [--inventory] [--report] [--date='yyy/mm/dd hh:mm:ss [AM|PM]']
+#   rfid_reader.ps1 [--debug] [--inventory] [--report] [--delta] [--compact] [--summary] [--date='yyy/mm/dd hh:mm:ss [AM|PM]']
+#                   [--durability=sync|nosync|group] [--batch-delay=<ms>]
 
 # PSScriptRoot is the directory from which we are executing
 # (where this script lives! the top level of our 
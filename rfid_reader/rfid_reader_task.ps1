@@ -74,5 +74,6 @@ if (Test-Path $current_file) {
 #Read-Host -Prompt "Press Enter to continue"
 
 
-# Generate the new report
+# Generate the new report. If the kiosk is running it writes the report from its own open
+# database (see ReportServer). Otherwise rfid_reader opens the database read only itself
 powershell -noprofile -executionpolicy bypass -file $PSScriptRoot\rfid_reader.ps1 --report 
@@ -0,0 +1,196 @@
+/**
+ * Name:
+ * 		AttendanceCache - write-through cache of today's DatabaseUserDay records, by username
+ *
+ * Description:
+ * 		Whether a scan is a login or a logout only depends on the user's record for today.
+ * 		Rather than reading that record from the B-tree on every scan, we keep today's records
+ * 		in memory. The DB is still written on every scan but never read on the scan path.
+ *
+ * 		Lifecycle:
+ * 			- Warmed from the DB (day secondary index) when the DB is opened
+ * 			- Evicted and re-warmed when the day changes. That's checked on every scan and also
+ * 			  by the scan writer when it's idle so the first scan of the day doesn't pay for it.
+ * 			- check() compares the cache with the store and reloads the day if they disagree
+ * 			- reload() throws the day away and loads it again, when a scan it has counted didn't commit
+ *
+ * 		Records in the cache are never modified in place. A scan updates a copy and replaces
+ * 		the cached record with it, so callers can hand the cached record to another thread
+ * 		(e.g. the scan writer) without copying it again.
+ */
+
+package rfid_reader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.persist.EntityCursor;
+
+public class AttendanceCache {
+
+	private final Database db;
+	private final Map<String, DatabaseUserDay> today_map = new HashMap<String, DatabaseUserDay>();
+	private int today = NO_DAY;							// Epoch day of the records in the map
+	private static final int NO_DAY = Integer.MIN_VALUE;
+
+	public AttendanceCache(Database db) {
+		this.db = db;
+	}
+
+	/**
+	 * Throw away whatever is cached and load all of this day's records from the DB
+	 *
+	 * @param day - epoch day (see Days)
+	 * @throws DatabaseException
+	 */
+	public synchronized void warm(int day) throws DatabaseException {
+
+		today_map.clear();
+		today = day;
+
+		EntityCursor<DatabaseUserDay> uds = db.getDay(day);
+		try {
+			for (DatabaseUserDay ud : uds) {
+				today_map.put(ud.getUsername(), ud);
+			}
+		} finally {
+			uds.close();
+		}
+		Log.debug("Attendance cache warmed for {} with {} users", Days.format(day), today_map.size());
+
+	} // end warm
+
+	/**
+	 * Warm the cache for the day of this timestamp if it isn't already
+	 *
+	 * @param date	- timestamp, epoch millis
+	 * @return		- the day (epoch day) of the timestamp
+	 * @throws DatabaseException
+	 */
+	public synchronized int rollover(long date) throws DatabaseException {
+		int day = Days.of(date);
+		if (day != today) {
+			warm(day);
+		}
+		return day;
+	}
+
+	/**
+	 * Load the cached day from the DB again. A write of a scan that's already been applied to the
+	 * cache didn't commit, so the cache has it and the DB doesn't.
+	 *
+	 * @throws DatabaseException
+	 */
+	public synchronized void reload() throws DatabaseException {
+		if (today != NO_DAY) {
+			warm(today);
+		}
+	}
+
+	/**
+	 * Apply a scan to this user's cached record for the day of the scan.
+	 * Does not touch the DB (unless the day changed). The caller writes get(user) if the scan was valid.
+	 *
+	 * @param user	- name of the user that scanned
+	 * @param date	- scan timestamp, epoch millis
+	 * @return		- login, logout or invalid. Invalid (or null) scans leave the cache unchanged
+	 * @throws DatabaseException
+	 */
+	public synchronized Constants.LoginType scan(String user, long date) throws DatabaseException {
+
+		int day = rollover(date);
+		Constants.LoginType login_type;
+
+		DatabaseUserDay ud = today_map.get(user);
+		if (ud == null) {
+			Log.debug("New day in DB for user: {}", user);
+			ud = new DatabaseUserDay(day, user, date);
+			login_type = Constants.LoginType.LOGIN;
+		} else {
+			Log.debug("User already has a timelog entry for today (so has scanned in): {}", user);
+			ud = ud.copy();								// Never modify a cached record in place
+			login_type = ud.getTimelog().update(date);
+		}
+
+		if (login_type == null || login_type == Constants.LoginType.INVALID_TIME_SPAN) {
+			return login_type;							// Not written to the DB so don't cache it either
+		}
+
+		today_map.put(user, ud);
+		return login_type;
+
+	} // end scan
+
+	/**
+	 * @param user	- name of the user
+	 * @return		- the user's cached record for today or null. Must not be modified
+	 */
+	public synchronized DatabaseUserDay get(String user) {
+		return today_map.get(user);
+	}
+
+	/**
+	 * @return - today's records for everyone scanned in and not out yet, sorted by username. Must not be modified
+	 */
+	public synchronized List<DatabaseUserDay> signedIn() {
+		List<DatabaseUserDay> signed_in = new ArrayList<DatabaseUserDay>();
+		for (DatabaseUserDay ud : today_map.values()) {
+			if (ud.getTimelog().isSignedIn()) {
+				signed_in.add(ud);
+			}
+		}
+		Collections.sort(signed_in, new Comparator<DatabaseUserDay>() {
+			public int compare(DatabaseUserDay a, DatabaseUserDay b) {
+				return a.getUsername().compareTo(b.getUsername());
+			}
+		});
+		return signed_in;
+	}
+
+	/**
+	 * Consistency check. Compare the cached day with what's in the store and reload from the
+	 * store if they don't match. Only meaningful when there are no writes in flight.
+	 *
+	 * @return - number of users whose cached record didn't match the store
+	 * @throws DatabaseException
+	 */
+	public synchronized int check() throws DatabaseException {
+
+		if (today == NO_DAY) {
+			return 0;
+		}
+
+		int mismatches = 0;
+		int found = 0;									// Stored records that are also cached
+		EntityCursor<DatabaseUserDay> uds = db.getDay(today);
+		try {
+			for (DatabaseUserDay ud : uds) {
+				DatabaseUserDay cached = today_map.get(ud.getUsername());
+				if (cached != null) {
+					found++;
+				}
+				if (cached == null || !cached.getTimelog().sameAs(ud.getTimelog())) {
+					Log.warn("Attendance cache out of date for: {}", ud.getUsername());
+					mismatches++;
+				}
+			}
+		} finally {
+			uds.close();
+		}
+
+		mismatches += today_map.size() - found;			// Cached users the store never got
+
+		if (mismatches > 0) {
+			Log.warn("Attendance cache had {} mismatches with the database. Reloading {}", mismatches, Days.format(today));
+			warm(today);
+		}
+		return mismatches;
+
+	} // end check
+
+} // end class AttendanceCache
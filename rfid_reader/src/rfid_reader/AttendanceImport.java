@@ -0,0 +1,166 @@
+/**
+ * Name:
+ * 		AttendanceImport - loads old seasons (exported from the Google Sheet) into the database
+ *
+ * Description:
+ * 		Before the kiosk, attendance was kept in a Google Sheet. --import=<file> reads a CSV export
+ * 		of it, one row per visit:
+ * 			Date, Name, Time In, Time Out
+ * 			2017/01/14, "Wolfe, Peter", 9:00, 18:00
+ * 		Date is "yyyy/MM/dd". The times are the time of day ("HH:mm[:ss]" or "hh:mm[:ss] AM|PM") in the
+ * 		lab's time zone. A visit with no Time Out is a login with no logout and gets no credit, same as at
+ * 		the kiosk. The first row is the header and is skipped.
+ *
+ * 		Going through Database.write a scan at a time means a transaction (and an fsync) per scan.
+ * 		Instead the rows are parsed, sorted by day then user then time in, and each user's visits for a day
+ * 		are replayed into one DatabaseUserTimelog, exactly like their scans would have been. The
+ * 		records then go to the database a day at a time in a few big transactions without an fsync
+ * 		(Database.importUserDays), and the log is flushed once at the end.
+ *
+ * 		An imported user's day replaces whatever was in the database for it, so an import can be
+ * 		fixed and run again. Bad rows are reported (with their line number) and skipped.
+ */
+
+package rfid_reader;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.sleepycat.je.DatabaseException;
+
+public class AttendanceImport {
+
+	private final Database db;
+
+	/** One row of the sheet */
+	private static final class Visit {
+		final int day;
+		final String user;
+		final long timeIn;							// Epoch millis. 0 if there's no time in
+		final long timeOut;							// Epoch millis. 0 if there's no time out
+
+		Visit(int day, String user, long timeIn, long timeOut) {
+			this.day = day;
+			this.user = user;
+			this.timeIn = timeIn;
+			this.timeOut = timeOut;
+		}
+	}
+
+	/**
+	 * @param db - database open for read/write
+	 */
+	public AttendanceImport(Database db) {
+		this.db = db;
+	}
+
+	/**
+	 * Import a CSV file of visits
+	 *
+	 * @param filename	- CSV file: Date, Name, Time In, Time Out
+	 * @return			- number of user days imported
+	 * @throws IOException
+	 * @throws DatabaseException
+	 */
+	public int load(String filename) throws IOException, DatabaseException {
+
+		long start = System.nanoTime();
+
+		List<Visit> visits = read(filename);
+		Collections.sort(visits, new Comparator<Visit>() {
+			public int compare(Visit a, Visit b) {
+				if (a.day != b.day) {
+					return Integer.compare(a.day, b.day);
+				}
+				int c = a.user.compareTo(b.user);
+				return (c != 0) ? c : Long.compare(a.timeIn, b.timeIn);
+			}
+		});
+
+		List<DatabaseUserDay> records = replay(visits);
+		int transactions = db.importUserDays(records);
+
+		System.out.println(String.format("Imported %d visits as %d user days in %d transactions (%.1fs)",
+				visits.size(), records.size(), transactions, (System.nanoTime() - start) / 1e9));
+		return records.size();
+
+	} // end load
+
+	/**
+	 * @param filename	- CSV file to read
+	 * @return			- every good row, in file order
+	 * @throws IOException
+	 */
+	private static List<Visit> read(String filename) throws IOException {
+
+		List<Visit> visits = new ArrayList<Visit>();
+		try (CSVReader reader = new CSVReaderBuilder(new FileReader(filename)).withSkipLines(1).build()) {	// Skip header row
+			String[] line;
+			long row = 1;
+			while ((line = reader.readNext()) != null) {
+				row++;
+				if (line.length == 1 && line[0].trim().isEmpty()) {
+					continue;								// Blank line
+				}
+				String in = (line.length > 2) ? line[2].trim() : "";
+				String out = (line.length > 3) ? line[3].trim() : "";
+				if (line.length < 2 || line[1].trim().isEmpty() || (in.isEmpty() && out.isEmpty())) {
+					System.err.println("WARNING: line " + row + " of " + filename + " needs a date, a name and a time. Skipping it");
+					continue;
+				}
+				try {
+					int day = Days.parse(line[0].trim());
+					visits.add(new Visit(day, line[1].trim(),
+							in.isEmpty() ? 0 : Days.atTime(day, in),
+							out.isEmpty() ? 0 : Days.atTime(day, out)));
+				} catch (DateTimeParseException e) {
+					System.err.println("WARNING: line " + row + " of " + filename + " has a bad date or time (" + e.getParsedString() + "). Skipping it");
+				}
+			}
+		}
+		return visits;
+
+	} // end read
+
+	/**
+	 * Turn each user's visits for a day into their record for the day, as if they'd scanned in and out
+	 *
+	 * @param visits	- sorted by day, user, time in
+	 * @return			- one record per user per day, sorted by day
+	 */
+	private static List<DatabaseUserDay> replay(List<Visit> visits) {
+
+		List<DatabaseUserDay> records = new ArrayList<DatabaseUserDay>();
+		DatabaseUserDay ud = null;
+		for (Visit v : visits) {
+			if (ud == null || ud.getDay() != v.day || !ud.getUsername().equals(v.user)) {
+				ud = new DatabaseUserDay(v.day, new DatabaseUserTimelog(v.user));
+				records.add(ud);
+			}
+			DatabaseUserTimelog timelog = ud.getTimelog();
+			if (v.timeIn == 0) {
+				timelog.setTimeOut(v.timeOut);				// Logout with no login. No credit, but keep it for the record
+				continue;
+			}
+			if (timelog.isSignedIn()) {
+				timelog.setTimeIn(0);						// The last visit never logged out. No credit for it
+			}
+			timelog.update(v.timeIn);
+			if (v.timeOut != 0) {
+				if (timelog.update(v.timeOut) == null) {	// Out before in. update() says why
+					timelog.setTimeIn(0);
+				}
+			}
+		}
+		return records;
+
+	} // end replay
+
+} // end class AttendanceImport
@@ -2,12 +2,31 @@
  *  Read barcodes from stding in a separate thread (in order to not block the RFID reader thread.
  *  The bardcode reader we're using behaves like a keyboard device! It scans teh code and "types it"
  *  to stdin AND includes a hard return!
+ *
+ *  This used to read a line at a time with NoEchoReader and call write_user itself, so in the morning
+ *  rush a barcode waited for the RFID threads' turns at write_user before the next one was even read.
+ *  Now it's two threads:
+ *  	barcode-reader	- reads stdin through a channel into a buffer, so a burst of scans (the scanner
+ *  					  types faster than we look) comes in with one read, and decodes it into lines.
+ *  					  Drops anything that isn't a Student ID before it's looked up. A Student ID scanned
+ *  					  twice is left to write_user's TapDebouncer, like a tag tapped twice
+ *  	barcode-scans	- takes the scans off a queue in order and hands them to write_user, which
+ *  					  queues them for the scan pipeline's writer like every other scan. A scan that
+ *  					  throws is logged and the next one is taken, like a bad card on a reader
+ *  Typed input is echoed now. It's a Student ID, the same thing the greeting prints.
  */
 package rfid_reader;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @author wolfe
@@ -15,30 +34,102 @@ import java.io.InputStreamReader;
  */
 public class BardcodeReaderThread implements Runnable {
 
+	private final BlockingQueue<String> scans = new ArrayBlockingQueue<String>(Constants.BARCODE_QUEUE_CAPACITY);
+	private final long[] key = new long[2];					// For TagIndex.barcodeKey. Reader thread only
+
 	public void run() {
 
-		//BufferedReader reader = new BufferedReader(new InputStreamReader(System.in)); 
-		//String barcode; 
-		NoEchoReader reader = new NoEchoReader();
-		
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						String input = scans.take();
+						try {
+							if (DatabaseDump.isCommand(input)) {	// A mentor asking for a dump, not a Student ID
+								RFIDreader.dump(input);
+							} else {
+								RFIDreader.write_user(input, Constants.TagType.BARCODE);
+							}
+						} catch (Exception e) {				// One bad scan mustn't stop the rest (the reader would wait on a full queue)
+							Log.error("Problem processing barcode " + input + ": {}", e);
+							System.err.println("ERROR: problem processing your Student ID: " + e.getMessage());
+							System.err.println("Please try again. If the problem continues, please tell a mentor.");
+						}
+					}
+				} catch (InterruptedException e) {
+					// Shutting down
+				}
+			}
+		}, "barcode-scans");
+		worker.setDaemon(true);
+		worker.start();
+
+		ReadableByteChannel in = Channels.newChannel(System.in);
+		ByteBuffer bytes = ByteBuffer.allocate(4096);
+		CharBuffer chars = CharBuffer.allocate(4096);
+		CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		StringBuilder line = new StringBuilder(Constants.BARCODE_MAX_LENGTH);
+
 		try {
-			
-			while (Boolean.TRUE) {
-				char[] barcode = reader.readPassword();
-				
-				//barcode = reader.readLine();
-				Debug.log("barcode: " + String.valueOf(barcode));
-				RFIDreader.write_user(String.valueOf(barcode), Constants.TagType.BARCODE);
+
+			while (in.read(bytes) >= 0) {
+				bytes.flip();
+				decoder.decode(bytes, chars, false);
+				bytes.compact();						// Keep half a character for the next read
+				chars.flip();
+				while (chars.hasRemaining()) {
+					char c = chars.get();
+					if (c == '\n' || c == '\r') {
+						scan(line);
+						line.setLength(0);
+					} else if (line.length() <= Constants.BARCODE_MAX_LENGTH) {
+						line.append(c);
+					}
+				}
+				chars.clear();
 			}
-			
+			scan(line);									// The last line, if stdin ended without a return
+			Log.info("stdin closed. No more barcodes");
+
 		} catch (IOException e) {
-			Debug.log("Exception reading from stdin!");
-			e.printStackTrace();
-		
+			Log.error("Exception reading from stdin!", e);
+
+		} catch (InterruptedException e) {
+			// Shutting down
+		}
+
+	} // end run
+
+	/**
+	 * Queue a line for write_user, unless it's blank or not a Student ID
+	 *
+	 * @param line - one line of input, without the return
+	 * @throws InterruptedException
+	 */
+	private void scan(StringBuilder line) throws InterruptedException {
+
+		String input = line.toString().trim();
+		if (input.isEmpty()) {
+			return;									// The return after a \r, or just Enter
 		}
-		
-		
-		
-	}
-	
+		if (DatabaseDump.isCommand(input)) {
+			scans.put(input);
+			return;
+		}
+
+		// Student IDs are digits, apart from the odd one in the roster that isn't
+		if (input.length() > Constants.BARCODE_MAX_LENGTH
+				|| (!TagIndex.barcodeKey(input, key) && !UserTags.isOtherBarcode(input))) {
+			System.out.println("Hey!!! " + (input.length() > 20 ? input.substring(0, 20) + "..." : input)
+					+ " isn't a Student ID. Scan your ID or type its number.");
+			return;
+		}
+
+		Log.debug("barcode: {}", input);
+		scans.put(input);							// Waits if write_user is that far behind
+
+	} // end scan
+
 }
@@ -0,0 +1,359 @@
+package rfid_reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.sleepycat.je.Durability;
+
+/**
+ * Micro benchmarks for the scan-to-commit hot path and for reporting.
+ *
+ * We don't have a build system to hang JMH off of (it's an eclipse project with jars in lib)
+ * so this is a plain main() in the style of Tester. Each benchmark is run for a few warmup
+ * iterations (to let the JIT do its thing) and then timed for several measured iterations.
+ * We print the mean and best time per operation. Use the numbers to compare before/after a
+ * change on the same machine - they aren't meaningful across machines.
+ *
+ * Uses the test tag file (data/testing.csv, same as Tester) and scratch databases under
+ * data/benchmark_DB which are deleted and rebuilt on every run.
+ *
+ * --profile runs every database with that Constants.DatabaseProfile (except --profile=report, which
+ * is only for read only opens: the writes get KIOSK). Without it they get what the kiosk would: KIOSK
+ * for the writes and REPORT for the reports (which, like --report, open the database read only after
+ * it's been filled).
+ *
+ * Usage:
+ * 		java -classpath "bin;lib\*" rfid_reader.Benchmark [-q | --quick] [-d | --debug] [--profile=kiosk|report|default]
+ */
+public class Benchmark {
+
+	private static int warmup_iterations = 5;
+	private static int measured_iterations = 10;
+	private static long sink = 0; 			// Results go here so the JIT can't throw the work away
+	private static Constants.DatabaseProfile profile = null;	// --profile. null for the kiosk's defaults
+
+	private static final int USERS = 60;
+	private static final int FIRST_TEST_TAG = 10001;		// Test tags are 10001..10060 (see Tester)
+	private static final String REPORT_FILENAME = Constants.DATABASE_DIR_BENCHMARK + "/report.csv";
+
+	/**
+	 * One benchmark operation. Returns something derived from its work so it can be sunk.
+	 */
+	private interface Op {
+		long run(int i) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		parseCommandLine(args);
+
+		UserTags.read_user_tags(Constants.USER_RFIDTAG_MAPPING_TESTING_FILENAME);
+
+		System.out.println(String.format("%-50s %12s %12s", "Benchmark", "mean ns/op", "best ns/op"));
+
+		benchTagLookup();
+		benchBin2hex();
+		benchTimelog();
+		benchWrite();
+		benchReport();
+
+		System.out.println("(sink: " + sink + ")");
+
+	} // end main
+
+	private static void benchTagLookup() throws Exception {
+
+		final String[] rfids = new String[USERS];
+		final String[] barcodes = new String[USERS];
+		for (int i = 0; i < USERS; i++) {
+			rfids[i] = Integer.toString(FIRST_TEST_TAG + i);
+			UserTag user = UserTags.getUser(rfids[i], Constants.TagType.RFID);
+			barcodes[i] = (user == null) ? "" : user.getUserTagBarcode();
+		}
+
+		run("UserTags.getUser RFID", 100000, new Op() {
+			public long run(int i) {
+				UserTag user = UserTags.getUser(rfids[i % USERS], Constants.TagType.RFID);
+				return user == null ? 0 : 1;
+			}
+		});
+		run("UserTags.getUser barcode", 100000, new Op() {
+			public long run(int i) {
+				UserTag user = UserTags.getUser(barcodes[i % USERS], Constants.TagType.BARCODE);
+				return user == null ? 0 : 1;
+			}
+		});
+		run("UserTags.getUser unknown tag", 100000, new Op() {
+			public long run(int i) {
+				UserTag user = UserTags.getUser("DEADBEEF", Constants.TagType.RFID);
+				return user == null ? 0 : 1;
+			}
+		});
+
+	} // end benchTagLookup
+
+	private static void benchBin2hex() throws Exception {
+
+		// MiFare UIDs are 4, 7 or 10 bytes
+		final byte[][] uids = new byte[][] {
+			{ (byte) 0x15, (byte) 0xC6, (byte) 0x29, (byte) 0x6A },
+			{ (byte) 0x04, (byte) 0x8A, (byte) 0x5B, (byte) 0x12, (byte) 0xE3, (byte) 0x4C, (byte) 0x80 },
+			{ (byte) 0x04, (byte) 0x8A, (byte) 0x5B, (byte) 0x12, (byte) 0xE3, (byte) 0x4C, (byte) 0x80, (byte) 0xFF, (byte) 0x00, (byte) 0x7E },
+		};
+		final int[] sizes = { 4, 7, 10 };
+
+		for (int k = 0; k < uids.length; k++) {
+			final byte[] uid = uids[k];
+			run("RFIDreader.bin2hex " + sizes[k] + " bytes", 100000, new Op() {
+				public long run(int i) {
+					return RFIDreader.bin2hex(uid).length();
+				}
+			});
+		}
+
+		// What the card read path does now: encode into a reused TagUid and look it up without a String.
+		// The test tags aren't hex UIDs so this is always a miss, but it's the same hashing/probing work
+		final TagUid tagUid = new TagUid();
+		for (int k = 0; k < uids.length; k++) {
+			final byte[] uid = uids[k];
+			run("TagUid.set + UserTags.getUser " + sizes[k] + " bytes", 100000, new Op() {
+				public long run(int i) {
+					UserTag user = UserTags.getUser(tagUid.set(uid, 0, uid.length));
+					return tagUid.hashCode() + (user == null ? 0 : 1);
+				}
+			});
+		}
+
+	} // end benchBin2hex
+
+	private static void benchTimelog() throws Exception {
+
+		final Date start = seasonStart(2018);
+
+		// A full day's worth of users logging in then out, on an in-memory (legacy) DatabaseDay
+		run("DatabaseDay.setUser_timelog (login+logout)", 1000, new Op() {
+			public long run(int i) {
+				DatabaseDay dd = new DatabaseDay("2018/01/06");
+				Date out = new Date(start.getTime() + 3 * Constants.HOUR);
+				long n = 0;
+				for (int u = 0; u < USERS; u++) {
+					n += dd.setUser_timelog(username(u), start).ordinal();
+				}
+				for (int u = 0; u < USERS; u++) {
+					n += dd.setUser_timelog(username(u), out).ordinal();
+				}
+				return n;
+			}
+		});
+
+		run("DatabaseUserTimelog.update (login+logout)", 100000, new Op() {
+			public long run(int i) {
+				DatabaseUserTimelog timelog = new DatabaseUserTimelog(username(i % USERS));
+				long n = timelog.update(start.getTime()).ordinal();
+				n += timelog.update(start.getTime() + 3 * Constants.HOUR).ordinal();
+				return n;
+			}
+		});
+
+	} // end benchTimelog
+
+	/**
+	 * Database.write with each JE commit durability. Each op is one scan in its own transaction.
+	 */
+	private static void benchWrite() throws Exception {
+
+		Durability[] durabilities = { Durability.COMMIT_SYNC, Durability.COMMIT_WRITE_NO_SYNC, Durability.COMMIT_NO_SYNC };
+		String[] names = { "sync", "write_no_sync", "no_sync" };
+
+		for (int k = 0; k < durabilities.length; k++) {
+			String dir = Constants.DATABASE_DIR_BENCHMARK + "/write_" + names[k];
+			deleteDir(dir);
+			// Every scan is a minute after the last one so users alternate login and logout
+			final SimulatedClock clock = new SimulatedClock(seasonStart(2018).toInstant(), 0);
+			final Database db = new Database();
+			db.setClock(clock);
+			db.setProfile(profile);
+			db.DBinit(dir, false);
+			db.setDurability(durabilities[k]);
+			int ops = (durabilities[k] == Durability.COMMIT_SYNC) ? 200 : 2000;
+
+			run("Database.write " + names[k], ops, new Op() {
+				public long run(int i) {
+					clock.advance(60 * 1000L);
+					return db.write(username(i % USERS)).ordinal();
+				}
+			});
+
+			db.close();
+		}
+
+	} // end benchWrite
+
+	/**
+	 * Database.reportFromDB over 1, 4 and 10 seasons of synthetic data (60 users, every day
+	 * of the build season, two login/logout pairs per day), and opening the database for it.
+	 * Filled read/write, then reported from read only like --report does
+	 */
+	private static void benchReport() throws Exception {
+
+		int[] seasons = { 1, 4, 10 };
+
+		for (int years : seasons) {
+			final String dir = Constants.DATABASE_DIR_BENCHMARK + "/report_" + years + "y";
+			deleteDir(dir);
+			Database writer = new Database();
+			writer.setProfile(profile);
+			writer.DBinit(dir, false);
+			populate(writer, years);
+			writer.close();
+
+			final Database db = new Database();
+			db.setProfile(profile);
+			db.DBinit(dir, true);
+			run("Database.reportFromDB " + years + " season(s)", 1, new Op() {
+				public long run(int i) {
+					db.reportFromDB(REPORT_FILENAME);
+					return new File(REPORT_FILENAME).length();
+				}
+			});
+			db.close();
+
+			run("Database.DBinit+close read only " + years + " season(s)", 1, new Op() {
+				public long run(int i) {
+					Database reader = new Database();
+					reader.setProfile(profile);
+					reader.DBinit(dir, true);
+					reader.close();
+					return 1;
+				}
+			});
+		}
+
+	} // end benchReport
+
+	/**
+	 * Fill a DB with build seasons (Jan 6th - Feb 20th) starting in 2010.
+	 * Each day is written with one writeBatch so this doesn't take forever.
+	 */
+	private static void populate(Database db, int years) throws Exception {
+
+		for (int y = 0; y < years; y++) {
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(seasonStart(2010 + y));
+			Calendar end = Calendar.getInstance();
+			end.setTime(seasonStart(2010 + y));
+			end.set(Calendar.MONTH, Calendar.FEBRUARY);
+			end.set(Calendar.DAY_OF_MONTH, 20);
+
+			while (!cal.after(end)) {
+				long in = cal.getTimeInMillis();
+				int day = Days.of(in);
+				List<DatabaseUserDay> records = new ArrayList<DatabaseUserDay>();
+				for (int u = 0; u < USERS; u++) {
+					DatabaseUserTimelog timelog = new DatabaseUserTimelog(username(u), in);
+					timelog.update(in + 2 * Constants.HOUR);
+					timelog.update(in + 3 * Constants.HOUR);
+					timelog.update(in + 5 * Constants.HOUR);
+					records.add(new DatabaseUserDay(day, timelog));
+				}
+				db.writeBatch(records, Durability.COMMIT_NO_SYNC);
+				cal.add(Calendar.DATE, 1);
+			}
+		}
+
+	} // end populate
+
+	/**
+	 * Time an operation. Each iteration runs it ops times.
+	 *
+	 * @param name	- benchmark name for the report
+	 * @param ops	- operations per iteration
+	 * @param op	- the operation
+	 */
+	private static void run(String name, int ops, Op op) throws Exception {
+
+		for (int it = 0; it < warmup_iterations; it++) {
+			for (int i = 0; i < ops; i++) {
+				sink += op.run(i);
+			}
+		}
+
+		long total = 0;
+		long best = Long.MAX_VALUE;
+		for (int it = 0; it < measured_iterations; it++) {
+			long t0 = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				sink += op.run(i);
+			}
+			long elapsed = System.nanoTime() - t0;
+			total += elapsed;
+			best = Math.min(best, elapsed);
+		}
+
+		System.out.println(String.format("%-50s %12d %12d", name,
+				total / ((long) measured_iterations * ops), best / ops));
+
+	} // end run
+
+	private static String username(int u) {
+		UserTag user = UserTags.getUser(Integer.toString(FIRST_TEST_TAG + u), Constants.TagType.RFID);
+		return (user == null) ? "Test user " + u : user.getUsername();
+	}
+
+	private static Date seasonStart(int year) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, Calendar.JANUARY, 6, 15, 30, 0);		// Jan 6th 3:30pm
+		return cal.getTime();
+	}
+
+	/**
+	 * Delete a scratch directory and everything in it. Also used by LoadGenerator
+	 */
+	static void deleteDir(String dir) throws IOException {
+		Path path = Paths.get(dir);
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> walk = Files.walk(path)) {
+			walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	/**
+	 * Simple CLI parser. Same idea as Tester's
+	 *
+	 * @param args - string array of command line arguments
+	 */
+	public static void parseCommandLine(String[] args) {
+
+		for (String argument: args) {
+			if (argument.equals("-d") || argument.equals("--debug")) {
+				Debug.enable(true);
+			} else if (argument.equals("-q") || argument.equals("--quick")) {
+				warmup_iterations = 1;
+				measured_iterations = 3;
+			} else if (argument.startsWith("--profile=")) {
+				profile = RFIDreader.parseProfile(argument);
+			} else {
+				Usage();
+			}
+		}
+
+	} // end parseCommandLine
+
+	private static void Usage() {
+		System.out.println("Usage: benchmark [-q | --quick] [-d | --debug] [--profile=kiosk|report|default]");
+		System.exit(0);
+	} // end Usage
+
+} // end class Benchmark
@@ -1,5 +1,7 @@
 package rfid_reader;
 
+import java.time.ZoneId;
+
 public interface Constants {
 	
 	// Filenames
@@ -9,18 +11,83 @@ public interface Constants {
 	public static final String TIMELOG_FILENAME = "data/FIRST Attendance - timelog.csv";
 	public static final String DATABASE_DIR 		= "data/attendance_DB";
 	public static final String DATABASE_DIR_TESTING = "data/testing_DB";
+	public static final String DATABASE_DIR_BENCHMARK = "data/benchmark_DB";	// Scratch DBs, rebuilt by every Benchmark run
+	public static final String DATABASE_DIR_LOAD = "data/load_DB";			// Scratch DB and roster, rebuilt by every load test (Tester --users=...)
+	public static final String DATABASE_DIR_JOURNAL_TEST = "data/journal_test";	// Scratch DB and journal, rebuilt by every Tester --journal run
 	public static final String REPORT_FILENAME = "./sync/current.csv";
+	public static final String SUMMARY_FILENAME = "./sync/summary.csv";		// Season totals per user
+	public static final String REPORT_DELTA_PREFIX = "./sync/delta_";		// Incremental reports: delta_<change>.csv
+	public static final String REPORT_DELTA_GLOB = "delta_*.csv";
+	public static final String REPORT_WATERMARK_FILENAME = "./sync/report.watermark";	// Last change in the reports (see ReportWatermark)
+	public static final String REPORT_REQUEST_FILENAME = "./sync/report.request";	// --report asks the running kiosk for one (see ReportServer)
+	public static final String REPORT_RUNNING_FILENAME = "./sync/report.running";
+	public static final String REPORT_DONE_FILENAME = "./sync/report.done";
+	public static final String REPORT_LOCK_FILENAME = "./sync/report.lock";		// Held by a --report for its whole request
 	
 	
 	// Other constants here
 	public static final String READER_NAME = "ACS ACR122 0";
+	public static final String READER_NAME_PREFIX = "ACS ACR122";		// Every ACR122 on the PC: "ACS ACR122 0", "ACS ACR122 1", ...
 	public static final String dateTimeFormatPattern = "yyyy/MM/dd HH:mm:ss z";
 	public static final long HOUR = 3600*1000; // An hour in milliseconds
+	public static final long DAY = 24*HOUR;		// A day in milliseconds (not counting daylight saving changes)
+	// The zone the lab is in. Scan times are stored as UTC epoch milliseconds and days as epoch days
+	// in this zone (see Days). Uses the PC's zone so the system we're running on MUST have the proper
+	// time zone set!!! For a fixed zone: ZoneId.of("America/New_York")
+	public static final ZoneId TIME_ZONE = ZoneId.systemDefault();
+	
+	// Scan pipeline: scans are queued and committed to the DB by a single writer thread
+	public static final int SCAN_QUEUE_CAPACITY = 1024;	// Scans waiting to be written before scanners block
+	public static final long SCAN_BATCH_DELAY_MS = 20;		// Group commit: max wait to gather scans into one commit
+	public static final long CACHE_CHECK_INTERVAL_MS = 10*60*1000;	// How often an idle writer checks the attendance cache against the DB
+	public static final String SCAN_JOURNAL_FILENAME = "data/scan_journal.dat";	// Every scan is saved here first (see ScanJournal)
+	public static final int SCAN_JOURNAL_CAPACITY = 65536;			// Scans the journal holds that aren't in the DB yet (3MB)
+	public static final long TAP_DEBOUNCE_MS = 10*1000;				// The same user again within this is one tap (see TapDebouncer)
+	public static final int TAP_DEBOUNCE_CAPACITY = 1024;			// Taps remembered for that long. More and the oldest are forgotten early
+	public static final int DUMP_MAX_ROWS = 200;					// Most records a !dump prints (see DatabaseDump)
+	public static final int BARCODE_QUEUE_CAPACITY = 256;			// Barcode scans read but not handed to write_user yet, before the reader waits
+	public static final int BARCODE_MAX_LENGTH = 64;				// Longer input isn't a Student ID. The rest of the line is ignored
+	public static final long DATABASE_RETRY_MS = 10*1000;			// How often the kiosk retries opening the DB if it won't open
+	public static final long COMMIT_RETRY_MS = 1000;				// First retry of a batch of scans that didn't commit. Doubles every time
+	public static final long COMMIT_RETRY_MAX_MS = 30*1000;			// up to this
+	public static final long REPORT_POLL_MS = 1000;					// How often the kiosk looks for a report request
+	public static final long REPORT_PICKUP_MS = 3*1000;				// --report opens the DB itself if the kiosk hasn't taken the request by then
+	public static final long REPORT_WAIT_MS = 10*60*1000;			// and gives up on a report the kiosk took after this long
+	public static final String METRICS_DIR = "data/metrics";			// metrics_<yyyy-MM-dd>.csv, one a day (see Metrics)
+	public static final long METRICS_INTERVAL_MS = 60*1000;			// A line in the metrics file this often
+	public static final int METRICS_KEEP_DAYS = 14;					// Older metrics files are deleted
+	public static final String LOG_FILENAME = "data/logs/rfid_reader.log";	// Diagnostics (see Log). Not the console
+	public static final long LOG_FILE_MAX_BYTES = 10*1024*1024;		// Then it's rolled to rfid_reader.log.1
+	public static final int LOG_RING_CAPACITY = 4096;				// Messages waiting for the log writer before they're dropped
+	public static final long LOG_RETRY_MS = 5*1000;					// How often the log writer retries a file it can't write
+	
+	// Berkeley DB profiles (see DatabaseProfile). JE's defaults are a 10MB log file, a checkpoint every 20MB
+	// written and 60% of the JVM's heap for the cache
+	public static final long KIOSK_CACHE_BYTES = 32*1024*1024;		// Today's records are in AttendanceCache. The DB cache holds the tree
+	public static final int KIOSK_LOG_FILE_BYTES = 4*1024*1024;		// Smaller files are cleaned (and deleted) sooner
+	public static final long KIOSK_CHECKPOINT_BYTES = 4*1024*1024;	// Less log to replay when the kiosk comes back from a power cut
+	public static final int KIOSK_CLEANER_THREADS = 1;				// The kiosk PC has one core. Scans come first
+	public static final int REPORT_CACHE_PERCENT = 80;				// Of the JVM's heap. A report has nothing else to keep in it
 	
 	public enum LoginType {
 		LOGIN, 
 		LOGOUT,
-		INVALID_TIME_SPAN		// Login/out pairs cannot span days...
+		INVALID_TIME_SPAN,		// Login/out pairs cannot span days...
+		SAVED					// Journaled but the DB isn't open yet. It's classified (and counted) when it opens
+	}
+
+	// How hard the scan writer works to make a commit durable
+	public enum CommitDurability {
+		SYNC,				// fsync every commit. Batches are whatever is already queued
+		WRITE_NO_SYNC,		// Write to the OS but don't fsync. Survives a JVM crash, not a power failure
+		GROUP				// Wait up to the batch delay to gather scans, then fsync once for all of them
+	}
+
+	// How Berkeley DB is tuned when the database is opened (see Database.setProfile). --profile to pick one
+	public enum DatabaseProfile {
+		DEFAULT,			// JE's defaults, as every version before profiles used
+		KIOSK,				// Long running and write heavy: small cache, small log files, frequent checkpoints
+		REPORT				// One shot and read only: big cache, no cleaner, checkpointer or other background threads
 	}
 
 	public enum TagType {
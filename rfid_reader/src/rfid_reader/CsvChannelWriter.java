@@ -0,0 +1,234 @@
+/**
+ * Name:
+ * 		CsvChannelWriter - CSV rows straight into a big byte buffer, written out through a FileChannel
+ *
+ * Description:
+ * 		opencsv's CSVWriter builds a String per row (plus a String per number we hand it) and goes
+ * 		through a Writer and a charset encoder. For the attendance report that's most of the work.
+ * 		This writes each field's UTF-8 bytes directly into a large ByteBuffer and only touches the
+ * 		file when the buffer fills, so writing a row doesn't allocate.
+ *
+ * 		The output is byte for byte what CSVWriter.writeNext(row, false) wrote (UTF-8, "\n" line ends):
+ * 		a field is quoted only if it has a quote, comma, \n or \r in it, and quotes inside are doubled.
+ *
+ * 		Not thread safe. One per file (or report partition).
+ */
+
+package rfid_reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class CsvChannelWriter implements Closeable {
+
+	public static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final char SEPARATOR = ',';
+	private static final char QUOTE = '"';
+	private static final byte LINE_END = '\n';
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private boolean first = true;				// Next field is the first in its row (no separator)
+	private final byte[] digits = new byte[20];	// Scratch for formatting numbers. A long is at most 20 characters
+	private int lastDay = Integer.MIN_VALUE;	// Epoch day in dayBytes. Reports write the same day over and over
+	private byte[] dayBytes;
+
+	/**
+	 * Create (or truncate) a file and write CSV to it
+	 *
+	 * @param path	- file to write
+	 * @throws IOException
+	 */
+	public CsvChannelWriter(Path path) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+	}
+
+	public CsvChannelWriter(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Write a whole row
+	 *
+	 * @param fields - the fields. null is written as an empty field
+	 * @throws IOException
+	 */
+	public void writeRow(String... fields) throws IOException {
+		for (String f : fields) {
+			field(f);
+		}
+		endRow();
+	}
+
+	/**
+	 * Add a text field to the current row, quoting it if needed
+	 *
+	 * @param s	- field value. null is written as an empty field
+	 * @throws IOException
+	 */
+	public void field(CharSequence s) throws IOException {
+
+		separator();
+		if (s == null) {
+			return;
+		}
+		int n = s.length();
+		boolean quote = needsQuotes(s);
+		if (quote) {
+			put((byte) QUOTE);
+		}
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c == QUOTE) {
+				put((byte) QUOTE);						// Quotes inside a field are doubled
+			}
+			if (c < 0x80) {
+				put((byte) c);
+			} else if (c < 0x800) {
+				ensure(2);
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				ensure(4);
+				buffer.put((byte) (0xF0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				put((byte) '?');						// Half a surrogate pair can't be encoded
+			} else {
+				ensure(3);
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		if (quote) {
+			put((byte) QUOTE);
+		}
+
+	} // end field
+
+	/**
+	 * Add a number field to the current row. Same text as Long.toString without making the String
+	 *
+	 * @param value	- field value
+	 * @throws IOException
+	 */
+	public void field(long value) throws IOException {
+
+		separator();
+		if (value == Long.MIN_VALUE) {					// Can't be negated
+			field(Long.toString(value));
+			return;
+		}
+		ensure(digits.length);
+		if (value < 0) {
+			buffer.put((byte) '-');
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		buffer.put(digits, i, digits.length - i);
+
+	} // end field
+
+	/**
+	 * Add a day field, "yyyy/MM/dd". Only formats the day when it's different from the last one
+	 *
+	 * @param day	- epoch day (see Days)
+	 * @throws IOException
+	 */
+	public void dayField(int day) throws IOException {
+
+		if (day != lastDay) {
+			dayBytes = Days.format(day).getBytes(StandardCharsets.US_ASCII);
+			lastDay = day;
+		}
+		separator();
+		ensure(dayBytes.length);
+		buffer.put(dayBytes);
+
+	} // end dayField
+
+	/**
+	 * End the current row
+	 *
+	 * @throws IOException
+	 */
+	public void endRow() throws IOException {
+		put(LINE_END);
+		first = true;
+	}
+
+	/**
+	 * Write out whatever is buffered
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * @return - the channel (e.g. to append other files after flush())
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Flush and close the file
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static boolean needsQuotes(CharSequence s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == QUOTE || c == SEPARATOR || c == '\n' || c == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void separator() throws IOException {
+		if (first) {
+			first = false;
+		} else {
+			put((byte) SEPARATOR);
+		}
+	}
+
+	private void put(byte b) throws IOException {
+		ensure(1);
+		buffer.put(b);
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+} // end class CsvChannelWriter
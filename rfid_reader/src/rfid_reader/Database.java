@@ -46,6 +46,20 @@
  *		Could have done a user has a set of days. Not sure it really matters (?). Still have
  *		to index by a primary and secondary key. However, I'm not a DB guy...
  *
+ *		It did matter. Storing a day as one record (DatabaseDay with a map of every user's timelog)
+ *		meant every scan re-read and re-wrote every user's timelog for that day. Each (day, username)
+ *		pair is now its own small DatabaseUserDay record with a composite primary key and a secondary
+ *		index on the day, so a scan touches exactly one record. Databases written by older versions
+ *		are converted to the new layout the first time they're opened read/write (see migrateLegacyDays).
+ *
+ *		Each user's running totals for the season (DatabaseUserSeason) are updated in the same transaction
+ *		as their day record (see putUserDay), so a season summary doesn't have to add up every day.
+ *
+ *		Days are stored as epoch day ints and scan times as epoch millis, in Constants.TIME_ZONE (see Days).
+ *		"yyyy/MM/dd" is only for people: reports, queries and the command line. The original DatabaseDay
+ *		layout stored Strings and Dates. DatabaseMutations tells the DPL how to read its timelogs' Dates and
+ *		migrateLegacyDays parses its day keys.
+ *
  *		There is an invaluable Berkely DB tutorial here: 
  *			http://www.oracle.com/technetwork/testcontent/o27berkeleydb-100623.html
  * 
@@ -66,7 +80,7 @@
  * 				[-V]                # print JE version number	 * 
  * 
  * 		Example DB dump command:
- * 		   java -jar ..\..\lib\je-7.4.5.jar DbDump -h . -s persist#RFIDStore#rfid_reader.DatabaseDay -p
+ * 		   java -jar ..\..\lib\je-7.4.5.jar DbDump -h . -s persist#RFIDStore#rfid_reader.DatabaseUserDay -p
  */
 
 
@@ -86,19 +100,29 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date; // Apparently Berkeley DB cannot persist Java8 MonthDay objects. So use the old date object
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 
-import com.opencsv.CSVWriter;
+import com.sleepycat.je.CacheMode;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.Sequence;
 import com.sleepycat.je.Transaction;
+import com.sleepycat.je.TransactionConfig;
 import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityIndex;
 import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.IndexNotAvailableException;
 import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
 
 
@@ -108,14 +132,29 @@ public class Database {
 
 	private Environment env;		// Berkley DB environment is a set of files in the DB directory
 	private EntityStore store;		// DB store for managing entity objects
-	private PrimaryIndex<String, DatabaseDay> dayByDate;
+	private PrimaryIndex<String, DatabaseDay> dayByDate;		// Legacy layout: one record per day. Only read for migration
+	private PrimaryIndex<DatabaseUserDayKey, DatabaseUserDay> userDayByKey;	// One record per (day, username)
+	private SecondaryIndex<Integer, DatabaseUserDayKey, DatabaseUserDay> userDaysByDay;
+	private SecondaryIndex<String, DatabaseUserDayKey, DatabaseUserDay> userDaysByUser;
+	private SecondaryIndex<Long, DatabaseUserDayKey, DatabaseUserDay> userDaysBySeq;
+	private PrimaryIndex<DatabaseUserSeasonKey, DatabaseUserSeason> seasonByKey;	// Per user season totals. null if read-only and not built yet
+	private PrimaryIndex<String, DatabaseJournalMark> journalMarks;	// How far into the scan journal we are. null if read-only and never written
+	private Sequence changeSeq;		// Hands out DatabaseUserDay.seq on every write (read/write only)
+	private AttendanceCache cache;	// Today's records. Scans are classified here so the DB is only written, not read
+	private Durability writeDurability = null;		// Commit durability for write(). null for the environment default
+	private Clock clock = Clock.system(Constants.TIME_ZONE);	// "Now" for scans. Fixed or simulated for testing
+	private Constants.DatabaseProfile profile = null;		// How JE is tuned. null for KIOSK read/write, REPORT read only
+	private static final String SCAN_JOURNAL = "scans";		// DatabaseJournalMark key of the kiosk's ScanJournal
 	
 	
 	/**
 	 * Initialize our database - a Berkeley DB for Java instance
 	 * 
+	 * This used to exit if the database couldn't be opened. The kiosk keeps taking scans (into the
+	 * ScanJournal) while it retries, so now it's up to the caller.
+	 * 
 	 * @param read_write - true if the DB is open for read/write access
-	 * @throws DatabaseException
+	 * @throws DatabaseException - can't open it (or another RuntimeException from the DPL). Nothing is left open
 	 */
     public void DBinit(String db_dir_filename, Boolean read_only) throws DatabaseException {
     	
@@ -129,14 +168,78 @@ public class Database {
         envConfig.setAllowCreate(true);
         envConfig.setTransactional(true);
         envConfig.setReadOnly(read_only);
+        Constants.DatabaseProfile p = (profile != null) ? profile
+        		: read_only ? Constants.DatabaseProfile.REPORT : Constants.DatabaseProfile.KIOSK;
+        if (p == Constants.DatabaseProfile.REPORT && !read_only) {
+        	// REPORT turns off the cleaner and checkpointer. Writing without them the log would never shrink
+        	System.err.println("WARNING: the report profile is only for reading the database. Using the kiosk profile");
+        	p = Constants.DatabaseProfile.KIOSK;
+        }
+        configure(envConfig, p);
         
         try {
         	env = new Environment(db_dir, envConfig);
-        } catch (Exception e) {
+        } catch (DatabaseException e) {
         	System.err.println("ERROR: Cannot open database!! Error is:");
         	System.err.println(e.getMessage());
-        	System.exit(1);
+        	env = null;
+        	throw e;
         }
+        
+        try {
+        	openStore(read_only);
+        } catch (RuntimeException e) {				// DatabaseException, or the DPL's IllegalArgumentException etc.
+        	System.err.println("ERROR: Cannot open the database store!! Error is:");
+        	System.err.println(e.getMessage());
+        	close();
+        	throw e;
+        }
+        
+    } // end DBinit
+    
+    /**
+     * Tune the environment for how it's going to be used. The kiosk and --report used to open it with
+     * the same defaults: a cache of 60% of the heap the kiosk didn't need, and a cleaner, checkpointer
+     * and verifier the report never had anything for.
+     * 
+     * @param envConfig	- environment config to tune
+     * @param profile	- how the database is going to be used
+     */
+    private static void configure(EnvironmentConfig envConfig, Constants.DatabaseProfile profile) {
+    	
+    	switch (profile) {
+    	case KIOSK:
+    		envConfig.setCacheSize(Constants.KIOSK_CACHE_BYTES);
+    		envConfig.setConfigParam(EnvironmentConfig.LOG_FILE_MAX, Integer.toString(Constants.KIOSK_LOG_FILE_BYTES));
+    		envConfig.setConfigParam(EnvironmentConfig.CHECKPOINTER_BYTES_INTERVAL, Long.toString(Constants.KIOSK_CHECKPOINT_BYTES));
+    		envConfig.setConfigParam(EnvironmentConfig.CLEANER_THREADS, Integer.toString(Constants.KIOSK_CLEANER_THREADS));
+    		envConfig.setConfigParam(EnvironmentConfig.STATS_COLLECT, "false");		// No je.stat.csv written every minute
+    		break;
+    		
+    	case REPORT:
+    		// Nothing is written, so there's nothing to clean, checkpoint or compress. Readers already
+    		// share latches in JE 7 (the old je.env.sharedLatches switch is ignored)
+    		envConfig.setCachePercent(Constants.REPORT_CACHE_PERCENT);
+    		envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, "false");
+    		envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false");
+    		envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_IN_COMPRESSOR, "false");
+    		envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_VERIFIER, "false");
+    		envConfig.setConfigParam(EnvironmentConfig.STATS_COLLECT, "false");
+    		break;
+    		
+    	default:
+    		break;										// JE's defaults
+    	}
+    	
+    } // end configure
+    
+    /**
+     * Open the entity store and indexes in the open environment and bring an older database up to date
+     * 
+     * @param read_only	- true if the DB is open for read only access
+     * @throws DatabaseException
+     */
+    private void openStore(boolean read_only) throws DatabaseException {
        
         
         /* Open a transactional EntityStore. */
@@ -144,15 +247,188 @@ public class Database {
         storeConfig.setAllowCreate(true);
         storeConfig.setTransactional(true);
         storeConfig.setReadOnly(read_only);
+        storeConfig.setMutations(DatabaseMutations.get());	// How to read the Dates older versions stored
         store = new EntityStore(env, "RFIDStore", storeConfig);
 
         /* Initialize the index objects. */
         
         
-        dayByDate 	= store.getPrimaryIndex(String.class, DatabaseDay.class);
+        // A read-only store cannot create databases, so an index that was never written 
+        // is not available. That's the legacy index on a new DB, or the current index on a DB 
+        // that was only ever written by an older version (and hasn't been converted yet).
+        try {
+        	dayByDate 	= store.getPrimaryIndex(String.class, DatabaseDay.class);
+        } catch (IndexNotAvailableException e) {
+        	dayByDate 	= null;
+        }
+        try {
+        	userDayByKey 	= store.getPrimaryIndex(DatabaseUserDayKey.class, DatabaseUserDay.class);
+        	userDaysByDay 	= store.getSecondaryIndex(userDayByKey, Integer.class, "day");
+        	userDaysByUser 	= store.getSecondaryIndex(userDayByKey, String.class, "username");
+        	userDaysBySeq 	= store.getSecondaryIndex(userDayByKey, Long.class, "seq");
+        } catch (IndexNotAvailableException e) {
+        	userDayByKey 	= null;
+        	userDaysByDay 	= null;
+        	userDaysByUser 	= null;
+        	userDaysBySeq 	= null;
+        	System.err.println("WARNING: database has not been converted to the current format yet. Reading the old format.");
+        }
         
+        try {
+        	seasonByKey 	= store.getPrimaryIndex(DatabaseUserSeasonKey.class, DatabaseUserSeason.class);
+        } catch (IndexNotAvailableException e) {
+        	seasonByKey 	= null;					// Summary report adds up the days instead
+        }
+        try {
+        	journalMarks 	= store.getPrimaryIndex(String.class, DatabaseJournalMark.class);
+        } catch (IndexNotAvailableException e) {
+        	journalMarks 	= null;
+        }
+        
+        if (!read_only) {
+        	changeSeq = store.getSequence("change");
+        	migrateLegacyDays();
+        	buildSeasonTotals();
+        	cache = new AttendanceCache(this);
+        	cache.rollover(clock.millis());			// Warm the cache with today's records
+        }
                     
-    } // end DBinit  	
+    } // end openStore  	
+    
+    /**
+     * Convert days written by older versions (one DatabaseDay record holding every user's timelog)
+     * into one DatabaseUserDay record per user. Each day is converted and then deleted in a single
+     * transaction, so an interrupted migration just picks up where it left off on the next open. 
+     * 
+     * @throws DatabaseException
+     */
+    private void migrateLegacyDays() throws DatabaseException {
+    	
+    	if (dayByDate == null) {
+    		return;
+    	}
+    	// Grab the (few hundred at most) day keys first. The cursor's read locks would block the deletes below
+    	List<String> days = new ArrayList<String>();
+    	EntityCursor<String> keys = dayByDate.keys();
+    	try {
+    		for (String day : keys) {
+    			days.add(day);
+    		}
+    	} finally {
+    		keys.close();
+    	}
+    	
+    	int count = 0;
+    	for (String day : days) {
+    		Transaction txn = env.beginTransaction(null, null);
+    		boolean success = false;
+    		try {
+    			DatabaseDay dd = dayByDate.get(txn, day, LockMode.RMW);
+    			int epoch_day = Days.parse(dd.getDay());
+    			for (DatabaseUserTimelog user_timelog : dd.getUser_timelog().values()) {
+    				userDayByKey.put(txn, new DatabaseUserDay(epoch_day, user_timelog));
+    			}
+    			dayByDate.delete(txn, day);
+    			success = true;
+    		} finally {
+    			if (success) {
+    				txn.commit();
+    				count++;
+    			} else {
+    				txn.abort();
+    				System.err.println("ERROR: cannot convert database day " + day + " to the new format");
+    			}
+    		}
+    	}
+    	
+    	if (count > 0) {
+    		System.out.println("Converted " + count + " database days to the per-user format");
+    	}
+    	
+    } // end migrateLegacyDays
+    
+    /**
+     * Season totals are kept up to date as days are written. A database from before we had them
+     * (or one that was just converted) has days but no totals, so add them all up once. 
+     * 
+     * @throws DatabaseException
+     */
+    private void buildSeasonTotals() throws DatabaseException {
+    	
+    	if (seasonByKey.count() > 0 || userDayByKey.count() == 0) {
+    		return;
+    	}
+    	Map<String, DatabaseUserSeason> totals = sumSeasons();
+    	
+    	Transaction txn = env.beginTransaction(null, null);
+    	boolean success = false;
+    	try {
+    		for (DatabaseUserSeason us : totals.values()) {
+    			seasonByKey.putNoReturn(txn, us);
+    		}
+    		success = true;
+    	} finally {
+    		if (success) {
+    			txn.commit();
+    			System.out.println("Added up season totals for " + totals.size() + " users/seasons");
+    		} else {
+    			txn.abort();
+    			System.err.println("ERROR: cannot build season totals");
+    		}
+    	}
+    	
+    } // end buildSeasonTotals
+    
+    /**
+     * Add up every user's days into season totals the slow way (reads every record)
+     * 
+     * @return - totals sorted by season then username
+     * @throws DatabaseException
+     */
+    private Map<String, DatabaseUserSeason> sumSeasons() throws DatabaseException {
+    	
+    	Map<String, DatabaseUserSeason> totals = new TreeMap<String, DatabaseUserSeason>();
+    	EntityCursor<DatabaseUserDay> uds = getUserDays(null, null);
+    	try {
+    		for (DatabaseUserDay ud = uds.next(); ud != null; ud = uds.next()) {
+    			String season = DatabaseUserSeason.seasonOf(ud.getDay());
+    			String key = season + "\t" + ud.getUsername();		// Tab sorts before any printable character
+    			DatabaseUserSeason us = totals.get(key);
+    			if (us == null) {
+    				us = new DatabaseUserSeason(new DatabaseUserSeasonKey(season, ud.getUsername()));
+    				totals.put(key, us);
+    			}
+    			us.add(null, ud);
+    		}
+    	} finally {
+    		uds.close();
+    	}
+    	return totals;
+    	
+    } // end sumSeasons
+    
+    /**
+     * Write a user's day and fold the change into the user's season totals, in the caller's transaction.
+     * Every write of a DatabaseUserDay goes through here.
+     * 
+     * @param txn	- transaction
+     * @param ud	- the user's updated record for the day
+     * @throws DatabaseException
+     */
+    private void putUserDay(Transaction txn, DatabaseUserDay ud) throws DatabaseException {
+    	
+    	ud.setSeq(changeSeq.get(null, 1));				// In commit order. The incremental report depends on it
+    	DatabaseUserDay before = userDayByKey.put(txn, ud);	// JE reads the old record anyway (to update the secondaries)
+    	
+    	DatabaseUserSeasonKey key = new DatabaseUserSeasonKey(DatabaseUserSeason.seasonOf(ud.getDay()), ud.getUsername());
+    	DatabaseUserSeason us = seasonByKey.get(txn, key, LockMode.RMW);
+    	if (us == null) {
+    		us = new DatabaseUserSeason(key);
+    	}
+    	us.add(before, ud);
+    	seasonByKey.putNoReturn(txn, us);
+    	
+    } // end putUserDay
    
     public Constants.LoginType write(String user) throws DatabaseException {
 
@@ -162,37 +438,23 @@ public class Database {
          * operations in this method.  Note that if no transaction were used,
          * auto-commit would be used for each individual operation.
          */
-        Transaction txn = env.beginTransaction(null, null);
+        long start = System.nanoTime();
+        TransactionConfig txnConfig = new TransactionConfig();
+        txnConfig.setDurability(writeDurability);		// null is the environment's default (sync)
+        Transaction txn = env.beginTransaction(null, txnConfig);
         boolean success = false;
         Constants.LoginType login_type;
         
         try { 
 
-        	String today = null; 
-        	
-
-        	// User Debug method to get the date. If debugging not enabled, 
-        	// it returns the current date. If enabled, it returns the user-specified date (for testing)
-        	Date date = Debug.getDate();				// Timestamp for right now including hh:mm:ss
-        	
-        	
-        	SimpleDateFormat sd = new SimpleDateFormat("yyyy/MM/dd");
-        	today = sd.format(date);			// This is just the year/month/day
-        	Debug.log("Today's database day is: " + today.toString());
-        				
+        	// The system clock unless a test set a fixed or simulated one
+        	long now = clock.millis();					// Timestamp for right now, epoch millis
         	
-        	DatabaseDay dd = dayByDate.get(today);		// Is there an existing db record for today?
-        	if (dd == null) {
-        		dd = new DatabaseDay(today);
-        		Debug.log("New day for DB");
-        		
-        	} else {
-        		Debug.log("Existing day in DB");
+        	// Login or logout is decided by the cached copy of today's records. Write it through
+        	login_type = cache.scan(user, now);
+        	if (login_type != null && login_type != Constants.LoginType.INVALID_TIME_SPAN) {	// Invalid scans don't update the DB
+        		putUserDay(txn, cache.get(user));
         	}
-        	        	
-        	login_type = dd.setUser_timelog(user, date);
-
-        	dayByDate.put(txn, dd); 
 
         	success = true; 
         } finally {
@@ -203,9 +465,15 @@ public class Database {
              */
             if (success) {
                 txn.commit();
+                Metrics.DB_WRITE.record(System.nanoTime() - start);
             } else {
                 txn.abort();
-                Debug.log("ERROR: Transaction aborted!!! for user: " + user);
+                Log.error("Transaction aborted!!! for user: {}", user);
+                try {
+                	cache.reload();							// It has the scan we didn't write
+                } catch (RuntimeException e) {				// Don't hide why the write failed
+                	Log.error("Cannot reload the attendance cache: {}", e);
+                }
             }       	
         }
     	
@@ -213,15 +481,437 @@ public class Database {
         
     } // end writeData
 
+    /**
+     * Look up one user's record for one day
+     * 
+     * @param day	- epoch day (see Days)
+     * @param user	- name of the user
+     * @return		- the user's record for that day or null if they haven't scanned that day
+     * @throws DatabaseException
+     */
+    public DatabaseUserDay getUserDay(int day, String user) throws DatabaseException {
+    	return userDayByKey.get(new DatabaseUserDayKey(day, user));
+    } // end getUserDay
+    
+    /**
+     * @param journalId	- ScanJournal.getId() of the journal we have
+     * @return			- sequence number of the last scan from that journal in the database, or null if
+     * 					  it has never had one (a new database, one from before the scan journal, or the
+     * 					  journal file has been deleted or replaced since)
+     * @throws DatabaseException
+     */
+    public Long getJournalApplied(long journalId) throws DatabaseException {
+    	if (journalMarks == null) {
+    		return null;
+    	}
+    	DatabaseJournalMark mark = journalMarks.get(SCAN_JOURNAL);
+    	return (mark == null || mark.getJournalId() != journalId) ? null : mark.getApplied();
+    }
+    
+    /**
+     * @return - true once DBinit has succeeded (until close)
+     */
+    public boolean isOpen() {
+    	return store != null;
+    }
+    
+    /**
+     * Set the commit durability used by write(). The scan pipeline passes its own to writeBatch.
+     * 
+     * @param durability - JE durability or null for the environment default (sync)
+     */
+    public void setDurability(Durability durability) {
+    	writeDurability = durability;
+    }
+    
+    /**
+     * Pick how JE is tuned (see Constants.DatabaseProfile). Set it before DBinit.
+     * 
+     * @param profile - null (the default) for KIOSK when opened read/write and REPORT when read only.
+     * 				  REPORT is only for read only. DBinit uses KIOSK instead if it opens read/write
+     */
+    public void setProfile(Constants.DatabaseProfile profile) {
+    	this.profile = profile;
+    }
+    
+    /**
+     * Use a different clock for "now" (see SimulatedClock). Set it before DBinit, or the cache is
+     * rolled over to the new clock's day right away.
+     * 
+     * @param clock - clock for scan times
+     * @throws DatabaseException
+     */
+    public void setClock(Clock clock) throws DatabaseException {
+    	this.clock = clock;
+    	if (cache != null) {
+    		cache.rollover(clock.millis());
+    	}
+    }
+    
+    /**
+     * @return - the clock scans are timestamped with
+     */
+    public Clock getClock() {
+    	return clock;
+    }
+    
+    /**
+     * @return - the cache of today's records (null if the DB was opened read-only)
+     */
+    public AttendanceCache getCache() {
+    	return cache;
+    }
+    
+    /**
+     * Write a batch of already-updated user records in a single transaction. 
+     * Used by the ScanPipeline writer so that a burst of scans costs one commit
+     * (and one fsync) instead of one each. 
+     * 
+     * @param records		- records to put, in scan order (a later record for the same user/day wins)
+     * @param durability	- JE commit durability for this transaction
+     * @throws DatabaseException
+     */
+    public void writeBatch(List<DatabaseUserDay> records, Durability durability) throws DatabaseException {
+    	writeBatch(records, durability, 0, 0);
+    }
+    
+    /**
+     * Same as above, and record that the database has the scan journal up to journalSeq
+     * in the same transaction
+     * 
+     * @param records		- records to put, in scan order (a later record for the same user/day wins)
+     * @param durability	- JE commit durability for this transaction
+     * @param journalId		- ScanJournal.getId() of the journal the scans are in
+     * @param journalSeq	- sequence number of the last journaled scan in the batch. 0 for none
+     * @throws DatabaseException
+     */
+    public void writeBatch(List<DatabaseUserDay> records, Durability durability, long journalId, long journalSeq) throws DatabaseException {
+    	
+    	long start = System.nanoTime();
+    	TransactionConfig txnConfig = new TransactionConfig();
+    	txnConfig.setDurability(durability);
+    	Transaction txn = env.beginTransaction(null, txnConfig);
+    	boolean success = false;
+    	
+    	try {
+    		for (DatabaseUserDay ud : records) {
+    			putUserDay(txn, ud);
+    		}
+    		if (journalSeq > 0) {
+    			journalMarks.putNoReturn(txn, new DatabaseJournalMark(SCAN_JOURNAL, journalId, journalSeq));
+    		}
+    		success = true;
+    	} finally {
+    		if (success) {
+    			txn.commit();
+    			Metrics.DB_WRITE.record(System.nanoTime() - start);
+    		} else {
+    			txn.abort();
+    			Log.error("Transaction aborted!!! for a batch of {} scans", records.size());
+    		}
+    	}
+    	
+    } // end writeBatch
+
+    
+    /**
+     * Bulk load records from an import (see AttendanceImport). Unlike a scan, each record replaces
+     * whatever is stored for its user and day, so running the same import again changes nothing.
+     * A record that's the same as the stored one isn't written at all: it keeps its change number,
+     * so running an import again doesn't put the whole file in the next --delta.
+     * 
+     * The records are written in big transactions that don't wait for the disk (there's no one
+     * at the kiosk waiting on them, and a failed import can just be run again), broken on day
+     * boundaries. The log is flushed to disk once at the end.
+     * 
+     * @param records	- records to put, sorted by day
+     * @return			- number of transactions it took
+     * @throws DatabaseException
+     */
+    public int importUserDays(List<DatabaseUserDay> records) throws DatabaseException {
+    	
+    	final int BATCH = 10000;						// Records per transaction (rounded up to a whole day)
+    	TransactionConfig txnConfig = new TransactionConfig();
+    	txnConfig.setDurability(Durability.COMMIT_NO_SYNC);
+    	
+    	int transactions = 0;
+    	int unchanged = 0;
+    	int i = 0;
+    	while (i < records.size()) {
+    		int end = Math.min(i + BATCH, records.size());
+    		while (end < records.size() && records.get(end).getDay() == records.get(end - 1).getDay()) {
+    			end++;									// Finish the day
+    		}
+    		Transaction txn = env.beginTransaction(null, txnConfig);
+    		boolean success = false;
+    		try {
+    			for (DatabaseUserDay ud : records.subList(i, end)) {
+    				DatabaseUserDay stored = userDayByKey.get(txn, ud.getKey(), LockMode.RMW);
+    				if (stored != null && stored.getTimelog().sameAs(ud.getTimelog())) {
+    					unchanged++;						// Already imported
+    					continue;
+    				}
+    				putUserDay(txn, ud);
+    			}
+    			success = true;
+    		} finally {
+    			if (success) {
+    				txn.commit();
+    				transactions++;
+    			} else {
+    				txn.abort();
+    				System.err.println("ERROR: import aborted at " + Days.format(records.get(i).getDay()) + ". Earlier days were imported");
+    			}
+    		}
+    		i = end;
+    	}
+    	
+    	env.flushLog(true);								// Now it's on disk
+    	cache.warm(Days.of(clock.millis()));			// In case today was imported
+    	Log.info("Import: {} of {} user days were already in the database as they are", unchanged, records.size());
+    	return transactions;
+    	
+    } // end importUserDays
+
+    
+    /*
+     * Queries. All of these are range lookups on an index (log n to find the start, then just the
+     * matching records), never a scan of the whole database. 
+     */
+    
+    /**
+     * One user's attendance between two days
+     * 
+     * @param user		- name of the user
+     * @param fromDay	- first day (epoch day), inclusive. null for the beginning
+     * @param toDay		- last day (epoch day), inclusive. null for the end
+     * @return			- the user's records, oldest first
+     * @throws DatabaseException
+     */
+    public List<DatabaseUserDay> queryUser(String user, Integer fromDay, Integer toDay) throws DatabaseException {
+    	
+    	List<DatabaseUserDay> days = new ArrayList<DatabaseUserDay>();
+    	DatabaseUserDayKey from = (fromDay == null) ? null : new DatabaseUserDayKey(fromDay, user);
+    	DatabaseUserDayKey to 	= (toDay == null) ? null : new DatabaseUserDayKey(toDay, user);
+    	// The user's sub-index is keyed by the primary key, (day, username), so it's in day order
+    	EntityCursor<DatabaseUserDay> uds = userDaysByUser.subIndex(user).entities(null, from, true, to, true, CursorConfig.READ_COMMITTED);
+    	try {
+    		for (DatabaseUserDay ud = uds.next(); ud != null; ud = uds.next()) {
+    			days.add(ud);
+    		}
+    	} finally {
+    		uds.close();
+    	}
+    	return days;
+    	
+    } // end queryUser
     
     /**
+     * Everyone who scanned in on a day
      * 
+     * @param day	- epoch day
+     * @return		- the day's records, sorted by username
+     * @throws DatabaseException
+     */
+    public List<DatabaseUserDay> queryDay(int day) throws DatabaseException {
+    	
+    	List<DatabaseUserDay> users = new ArrayList<DatabaseUserDay>();
+    	EntityCursor<DatabaseUserDay> uds = getDay(day);
+    	try {
+    		for (DatabaseUserDay ud = uds.next(); ud != null; ud = uds.next()) {
+    			users.add(ud);
+    		}
+    	} finally {
+    		uds.close();
+    	}
+    	return users;
+    	
+    } // end queryDay
+    
+    /**
+     * Everyone signed in right now (scanned in today and hasn't scanned out yet)
      * 
+     * @return - their records for today, sorted by username
      * @throws DatabaseException
      */
-    public void queryDB() throws DatabaseException {
+    public List<DatabaseUserDay> querySignedIn() throws DatabaseException {
+    	
+    	if (cache != null) {								// On the kiosk: includes scans that are still being committed
+    		cache.rollover(clock.millis());
+    		return cache.signedIn();
+    	}
+    	List<DatabaseUserDay> signed_in = new ArrayList<DatabaseUserDay>();
+    	int today = Days.of(clock.millis());
+    	for (DatabaseUserDay ud : queryDay(today)) {		// Committed records. The kiosk's newest scans may still be queued
+    		if (ud.getTimelog().isSignedIn()) {
+    			signed_in.add(ud);
+    		}
+    	}
+    	return signed_in;
+    	
+    } // end querySignedIn
+    
+    /**
+     * Get all the user records for a single day
+     * 
+     * @param day	- epoch day
+     * @return		- cursor over the day's records, sorted by username. Caller must close it
+     * @throws DatabaseException
+     */
+    public EntityCursor<DatabaseUserDay> getDay(int day) throws DatabaseException {
+    	EntityIndex<DatabaseUserDayKey, DatabaseUserDay> users = userDaysByDay.subIndex(day);
+    	return users.entities();
+    } // end getDay
+    
+    /**
+     * All the days anyone scanned, oldest first. Walks only the keys of the day index 
+     * (one step per day, not per record) so no records are read.
+     * 
+     * @return - epoch days
+     * @throws DatabaseException
+     */
+    public List<Integer> getDays() throws DatabaseException {
+    	
+    	List<Integer> days = new ArrayList<Integer>();
+    	EntityCursor<Integer> keys = userDaysByDay.keys(null, CursorConfig.READ_COMMITTED);
+    	try {
+    		for (Integer day = keys.first(); day != null; day = keys.nextNoDup()) {
+    			days.add(day);
+    		}
+    	} finally {
+    		keys.close();
+    	}
+    	return days;
+    	
+    } // end getDays
+    
+    /**
+     * Cursor for reporting over a range of days. Sorted by day, then username.
+     * Read committed (no read locks held on the whole range) and leaf records are evicted from the
+     * JE cache as soon as they're read, so a report over years of history doesn't push the 
+     * kiosk's working set out of the cache or grow the heap.
+     * 
+     * @param fromDay	- first day (epoch day), inclusive. null for the beginning
+     * @param toDay		- last day (epoch day), exclusive. null for the end
+     * @return			- cursor over the records. Caller must close it
+     * @throws DatabaseException
+     */
+    public EntityCursor<DatabaseUserDay> getUserDays(Integer fromDay, Integer toDay) throws DatabaseException {
+    	
+    	DatabaseUserDayKey from = (fromDay == null) ? null : new DatabaseUserDayKey(fromDay, "");	// "" sorts before any username
+    	DatabaseUserDayKey to 	= (toDay == null) ? null : new DatabaseUserDayKey(toDay, "");
+    	EntityCursor<DatabaseUserDay> uds = userDayByKey.entities(null, from, true, to, false, CursorConfig.READ_COMMITTED);
+    	uds.setCacheMode(CacheMode.EVICT_LN);
+    	return uds;
+    	
+    } // end getUserDays
+    
+    /**
+     * Cursor over the records written after a change sequence number, oldest change first.
+     * Each record appears once, with its latest change.
+     * 
+     * @param seq	- report changes after this one
+     * @return		- cursor over the changed records. Caller must close it
+     * @throws DatabaseException
+     */
+    public EntityCursor<DatabaseUserDay> getChangesSince(long seq) throws DatabaseException {
+    	
+    	EntityCursor<DatabaseUserDay> uds = userDaysBySeq.entities(null, seq, false, null, false, CursorConfig.READ_COMMITTED);
+    	uds.setCacheMode(CacheMode.EVICT_LN);
+    	return uds;
+    	
+    } // end getChangesSince
+    
+    /**
+     * The n most recently changed records, walking the change index backwards so nothing older
+     * is read. The index only has each record's latest change, so a record changed by several
+     * recent scans counts once and this can reach back past the last n scans.
+     * 
+     * @param n	- how many records
+     * @return	- the records, most recently changed first
+     * @throws DatabaseException
+     */
+    public List<DatabaseUserDay> queryRecentlyChanged(int n) throws DatabaseException {
+    	
+    	List<DatabaseUserDay> records = new ArrayList<DatabaseUserDay>();
+    	EntityCursor<DatabaseUserDay> uds = userDaysBySeq.entities(null, CursorConfig.READ_COMMITTED);
+    	try {
+    		for (DatabaseUserDay ud = uds.last(); ud != null && records.size() < n; ud = uds.prev()) {
+    			records.add(ud);
+    		}
+    	} finally {
+    		uds.close();
+    	}
+    	return records;
+    	
+    } // end queryRecentlyChanged
+    
+    /**
+     * @return - change sequence number of the most recent write. 0 if nothing has one yet
+     * @throws DatabaseException
+     */
+    public long getLastChange() throws DatabaseException {
+    	
+    	EntityCursor<Long> keys = userDaysBySeq.keys(null, CursorConfig.READ_COMMITTED);
+    	try {
+    		Long last = keys.last();
+    		return (last == null) ? 0 : last;
+    	} finally {
+    		keys.close();
+    	}
+    	
+    } // end getLastChange
+    
+    /**
+     * One user's totals for one season
+     * 
+     * @param season	- "yyyy"
+     * @param user		- name of the user
+     * @return			- the totals or null if they never scanned that season
+     * @throws DatabaseException
+     */
+    public DatabaseUserSeason getSeasonTotals(String season, String user) throws DatabaseException {
+    	
+    	if (seasonByKey == null) {
+    		return sumSeasons().get(season + "\t" + user);
+    	}
+    	return seasonByKey.get(null, new DatabaseUserSeasonKey(season, user), LockMode.READ_COMMITTED);
+    	
+    } // end getSeasonTotals
     
-    } // end queryDB
+    /**
+     * Every user's totals for a season, or for all seasons. One record per user per season, 
+     * so this is O(users) no matter how many days there are.
+     * 
+     * @param season	- "yyyy" or null for every season
+     * @return			- totals sorted by season then username
+     * @throws DatabaseException
+     */
+    public List<DatabaseUserSeason> getSeasonTotals(String season) throws DatabaseException {
+    	
+    	List<DatabaseUserSeason> totals = new ArrayList<DatabaseUserSeason>();
+    	if (seasonByKey == null) {							// Read-only DB the reader hasn't opened since we added totals
+    		for (DatabaseUserSeason us : sumSeasons().values()) {
+    			if (season == null || season.equals(us.getSeason())) {
+    				totals.add(us);
+    			}
+    		}
+    		return totals;
+    	}
+    	
+    	DatabaseUserSeasonKey from = (season == null) ? null : new DatabaseUserSeasonKey(season, "");
+    	DatabaseUserSeasonKey to = (season == null) ? null : new DatabaseUserSeasonKey(season + "\uffff", "");
+    	EntityCursor<DatabaseUserSeason> uss = seasonByKey.entities(null, from, true, to, false, CursorConfig.READ_COMMITTED);
+    	try {
+    		for (DatabaseUserSeason us = uss.next(); us != null; us = uss.next()) {
+    			totals.add(us);
+    		}
+    	} finally {
+    		uss.close();
+    	}
+    	return totals;
+    	
+    } // end getSeasonTotals
 
     /**
      * Read the DB to create reports (or emit CSV files for use with excel)
@@ -229,10 +919,21 @@ public class Database {
      * @throws DatabaseException
      */	
     public void reportFromDB() throws DatabaseException {
+    	reportFromDB(Constants.REPORT_FILENAME);
+    } // end reportFromDB
+    
+    /**
+     * Same as reportFromDB() but to a specific file (e.g. so the benchmarks don't overwrite the real report)
+     * 
+     * @param filename	- CSV file to write
+     * @throws DatabaseException
+     */
+    public void reportFromDB(String filename) throws DatabaseException {
         
-    	EntityCursor<DatabaseDay> dds = dayByDate.entities();	// Database days
-    	Map<String, DatabaseUserTimelog> users_timelog_map;
-    	DatabaseUserTimelog user_timelog;
+    	if (userDayByKey == null) {							// Read-only DB still in an old format 
+    		reportFromLegacyDays(filename);
+    		return;
+    	}
     	
     	// Ug. When trying to use System.out on Windows, the output file is ALWAYS UTF-16 no matter what I did. 
     	// Specify the OutputStream's charset, running the entire jvm with -Dfile.encodin=ISO8859-1, converting Strings to Latin-1 bytes...
@@ -247,105 +948,131 @@ public class Database {
     	} catch (UnsupportedEncodingException e1) {
     		e1.printStackTrace();
     	}
- 
-    	
-/*
-    	// Leaving the name here stdout - which is now an anachronism given the above restriction - I can't
-    	// really write string to System.out. Hoping to someday find a solution that works. 
-    	BufferedWriter stdout = new BufferedWriter(new OutputStreamWriter(System.out));
-    	//BufferedWriter stdout = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1));
-*/
-/*    	
-    	BufferedWriter stdout = null;
-    	
-    	try {
-			stdout = new BufferedWriter(new OutputStreamWriter(new PrintStream(System.out, true, StandardCharsets.ISO_8859_1.name())));
-		} catch (UnsupportedEncodingException e1) {
-			e1.printStackTrace();
-		}
-*/    	
-    	
   
     	// Geez louise I give up. Just write to a stupid file cause I cannot bend console output to my ISO-88590-1 will
     	// and end up with UTF-16 files which google sheets chokes on. 
-    	Writer stdout = null;
-		try {
-			//stdout = Files.newBufferedWriter(Paths.get(REPORT_FILENAME), StandardCharsets.ISO_8859_1);
-			stdout = Files.newBufferedWriter(Paths.get(Constants.REPORT_FILENAME));
-
-		} catch (IOException e1) {		
-			e1.printStackTrace();
-		}
-   	
-    	CSVWriter writer = new CSVWriter(stdout); 
-
-    	
+    	// The report itself (cursors, partitions, CSV) is in ReportWriter
     	try {
+    		new ReportWriter(this).write(Paths.get(filename));
+    		System.out.println("Report written to " + filename);
+    	} catch (IOException e) {
+    		System.err.println("ERROR: cannot write report " + filename + ": " + e.getMessage());
+    		Log.error("Cannot write report " + filename + ": {}", e);
+    	}
+    	
+    } // end reportFromDB
 
-/**
- * quick for debugging
-    		for (DatabaseDay dd : dds) {
-	    		System.out.println(dd);
-	    	}
-   */ 		
-
-/**
- * quick for sanity checking output
-    		for (DatabaseDay dd : dds) {						// For each day
-    			users_timelog_map = dd.getUser_timelog();		// Get all the user records for this day
-    			for (String key: users_timelog_map.keySet()) { 	// For each user name
-    				user_timelog = users_timelog_map.get(key);
-    				System.out.println(dd.getDay() + " " + user_timelog.getUsername() + " " + user_timelog.getCheckins() + " " + user_timelog.getTotalTimeToday());
-    			}
-	    	}
-*/
-    		
-    		// Write CSV header to stdout 
-    		String [] s	= new String [] {"Date", "Name", "Checkins", "Total Time"};
-
-    		writer.writeNext(s, false); 						// Write the header, quote only when needed
+    /**
+     * Incremental report: only the records that changed since the last report, to a delta file in ./sync
+     * 
+     * @throws DatabaseException
+     */
+    public void reportChangesFromDB() throws DatabaseException {
+    	if (userDayByKey == null) {							// Read-only DB still in the old format. No changes to track
+    		reportFromLegacyDays(Constants.REPORT_FILENAME);
+    		return;
+    	}
+    	try {
+    		new ReportWriter(this).writeDelta();
+    	} catch (IOException e) {
+    		System.err.println("ERROR: cannot write incremental report: " + e.getMessage());
+    		Log.error("Cannot write incremental report: {}", e);
+    	}
+    } // end reportChangesFromDB
+    
+    /**
+     * Full report that replaces the deltas written so far (see ReportWriter.compact)
+     * 
+     * @throws DatabaseException
+     */
+    public void compactReport() throws DatabaseException {
+    	if (userDayByKey == null) {							// Read-only DB still in the old format. No changes to track
+    		reportFromLegacyDays(Constants.REPORT_FILENAME);
+    		return;
+    	}
+    	try {
+    		new ReportWriter(this).compact();
+    	} catch (IOException e) {
+    		System.err.println("ERROR: cannot write report: " + e.getMessage());
+    		Log.error("Cannot write report: {}", e);
+    	}
+    } // end compactReport
+    
+    /**
+     * Season summary report: one row per user per season (see ReportWriter.writeSummary)
+     * 
+     * @param filename	- CSV file to write
+     * @throws DatabaseException
+     */
+    public void summaryFromDB(String filename) throws DatabaseException {
+    	if (userDayByKey == null) {
+    		System.err.println("ERROR: convert the database first (start the reader once) to get a summary");
+    		return;
+    	}
+    	try {
+    		new ReportWriter(this).writeSummary(Paths.get(filename));
+    		System.out.println("Summary written to " + filename);
+    	} catch (IOException e) {
+    		System.err.println("ERROR: cannot write summary " + filename + ": " + e.getMessage());
+    	}
+    } // end summaryFromDB
+    
+    /**
+     * Same report as reportFromDB for a database that was only ever written by an older
+     * version (one DatabaseDay record per day) and was opened read-only so it couldn't be converted.
+     * 
+     * @param filename	- CSV file to write
+     * @throws DatabaseException
+     */
+    private void reportFromLegacyDays(String filename) throws DatabaseException {
+    	
+    	try (CsvChannelWriter writer = new CsvChannelWriter(Paths.get(filename))) {
+    		writer.writeRow(ReportWriter.HEADER);
     		
-    		for (DatabaseDay dd : dds) {						// For each day
-    			users_timelog_map = dd.getUser_timelog();		// Get all the user records for this day
-    			for (String key: users_timelog_map.keySet()) { 	// For each user name
-    				user_timelog = users_timelog_map.get(key);
-    				s[0] = dd.getDay();
-    				s[1] = user_timelog.getUsername();
-    				s[2] = Integer.toString(user_timelog.getCheckins());
-    				s[3] = Long.toString(user_timelog.getTotalTimeToday());
-    				writer.writeNext(s, false);
+    		if (dayByDate != null) {
+    			EntityCursor<DatabaseDay> dds = dayByDate.entities();	// Database days
+    			try {
+    				for (DatabaseDay dd : dds) {						// For each day
+    					for (DatabaseUserTimelog user_timelog : dd.getUser_timelog().values()) { 	// For each user
+    						writeLegacyRow(writer, dd.getDay(), user_timelog);
+    					}
+    				}
+    			} finally {
+    				dds.close();
     			}
-	    	}
-
-    	} finally {
-     		dds.close();
-     		try {
-     			writer.flush();
-     			writer.close();
-     		} catch (IOException e) {
-     			System.err.println("Error: cannot close stream: " + e.getMessage());
-     			e.printStackTrace();
-     		}
-     		System.out.println("Report written to " + Constants.REPORT_FILENAME);
+    		}
+    		System.out.println("Report written to " + filename);
+    	} catch (IOException e) {
+    		System.err.println("ERROR: cannot write report " + filename + ": " + e.getMessage());
     	}
     	
-    	
-    } // end reportFromDB
+    } // end reportFromLegacyDays
+    
+    private static void writeLegacyRow(CsvChannelWriter writer, String day, DatabaseUserTimelog user_timelog) throws IOException {
+    	writer.field(day);
+    	writer.field(user_timelog.getUsername());
+    	writer.field(user_timelog.getCheckins());
+    	writer.field(user_timelog.getTotalTimeToday());
+    	writer.endRow();
+    }
 
 public void dumpDB() throws DatabaseException {
         
-    	EntityCursor<DatabaseDay> dds = dayByDate.entities();
+    	if (userDayByKey == null) {
+    		return;
+    	}
+    	EntityCursor<DatabaseUserDay> uds = userDayByKey.entities();
     	
     	try {
     		System.out.println("DB dump: ");
 
 
-    		for (DatabaseDay dd : dds) {
-	    		System.out.println(dd);
+    		for (DatabaseUserDay ud : uds) {
+	    		System.out.println(ud);
 	    	}
     		
     	} finally {
-    		dds.close();
+    		uds.close();
     	}
     	    	
     } // end dumpDB
@@ -353,8 +1080,18 @@ public void dumpDB() throws DatabaseException {
     
     public void close() throws DatabaseException {
 		/* Always close the store first, then the environment. */
-        store.close();
-        env.close();
+        if (changeSeq != null) {
+        	changeSeq.close();
+        	changeSeq = null;
+        }
+        if (store != null) {
+        	store.close();
+        	store = null;
+        }
+        if (env != null) {
+        	env.close();
+        	env = null;
+        }
 	}
     
 } // end class Database
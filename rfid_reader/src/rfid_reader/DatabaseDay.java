@@ -15,6 +15,10 @@ import java.util.Map;
 // The relationship between a Day and a UserTimelog is many to one: Each day
 // can have multiple UserTimelog records. 
 // There is only ONE UserTimlog record per user
+//
+// Legacy: this was the original storage layout. Days are now stored as one DatabaseUserDay
+// record per user and Database converts any DatabaseDay records it finds when opened read/write.
+// The class must stay around (unchanged) so the DPL can still read old databases.
 
 @Entity
 public class DatabaseDay {
@@ -72,16 +76,16 @@ public class DatabaseDay {
 		Constants.LoginType type; 
 		// See if there is a record for this user today
 		if (user_timelog_map.containsKey(user)) {
-			Debug.log("User already has a timelog entry for today (so has scanned in): " + user);
+			Log.debug("User already has a timelog entry for today (so has scanned in): {}", user);
 			user_timelog = user_timelog_map.get(user);
-			type = user_timelog.update(date); // If user already existed, check for scan ir or out and update accordingly
+			type = user_timelog.update(date.getTime()); // If user already existed, check for scan ir or out and update accordingly
 
 			if (type == Constants.LoginType.INVALID_TIME_SPAN) {
 				return type; //Return without updating the DB
 			}
 		
 		} else {
-			user_timelog = new DatabaseUserTimelog(user, date);
+			user_timelog = new DatabaseUserTimelog(user, date.getTime());
 			type = Constants.LoginType.LOGIN;
 		}
 		
@@ -0,0 +1,128 @@
+/**
+ * Name:
+ * 		DatabaseDump - print part of the database on demand, while the kiosk is running
+ *
+ * Description:
+ * 		In debug mode the kiosk used to dump the whole database (every record ever) after every tap.
+ * 		A few weeks in that took longer than the taps, so debug mode was no use under real load.
+ * 		Now a mentor types a command at the kiosk (where the Student IDs are typed) and gets just
+ * 		the records they want, from the database (committed scans) with read committed cursors:
+ * 			!dump						- the DEFAULT_CHANGES most recently changed records, newest first
+ * 			!dump <n>					- the n most recently changed records
+ * 			!dump today [name]			- today's records [just this user's]
+ * 			!dump <day>[..<day>] [name]	- a day or days ("yyyy/MM/dd", inclusive) [just this user's]
+ * 			!dump <name>				- every record this user has
+ * 		A Student ID or barcode never starts with "!", so a command can't be mistaken for a scan.
+ *
+ * 		The dump doesn't hold up scans (the cursors are read committed, no scan lock), but it's still
+ * 		the kiosk's disk and console, so it stops at Constants.DUMP_MAX_ROWS records.
+ */
+
+package rfid_reader;
+
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.persist.EntityCursor;
+
+public class DatabaseDump {
+
+	public static final String COMMAND = "!dump";
+	private static final int DEFAULT_CHANGES = 20;
+
+	private final Database db;
+
+	/**
+	 * @param db - open database
+	 */
+	public DatabaseDump(Database db) {
+		this.db = db;
+	}
+
+	/**
+	 * @param line	- a line typed at the kiosk
+	 * @return		- true if it's a dump command rather than a Student ID
+	 */
+	public static boolean isCommand(String line) {
+		return line.equals(COMMAND) || line.startsWith(COMMAND + " ");
+	}
+
+	/**
+	 * Run a dump command and print what it found
+	 *
+	 * @param line - "!dump ...", see above
+	 * @throws DatabaseException
+	 */
+	public void run(String line) throws DatabaseException {
+
+		String args = line.substring(COMMAND.length()).trim();
+		String first = args.split(" ", 2)[0];
+		String rest = args.substring(first.length()).trim();
+
+		List<DatabaseUserDay> records;
+		String what;
+		try {
+			if (args.isEmpty() || first.matches("\\d+")) {
+				int n = args.isEmpty() ? DEFAULT_CHANGES : Math.min(Integer.parseInt(first), Constants.DUMP_MAX_ROWS);
+				records = db.queryRecentlyChanged(n);
+				what = "the " + n + " most recently changed records, newest first";
+
+			} else if (first.equalsIgnoreCase("today")) {
+				int today = Days.of(db.getClock().millis());
+				records = query(today, today, rest);
+				what = rest.isEmpty() ? "today" : "today, " + rest;
+
+			} else if (Character.isDigit(first.charAt(0))) {
+				String[] range = first.split("\\.\\.", 2);
+				int from = Days.parse(range[0]);
+				int to = (range.length > 1) ? Days.parse(range[1]) : from;
+				records = query(from, to, rest);
+				what = rest.isEmpty() ? first : first + ", " + rest;
+
+			} else {
+				records = db.queryUser(args, null, null);
+				what = args + ", every day";
+			}
+		} catch (DateTimeParseException | NumberFormatException e) {
+			System.out.println("Usage: " + COMMAND + " [<scans> | today | yyyy/MM/dd[..yyyy/MM/dd]] [name]");
+			return;
+		}
+
+		int shown = Math.min(records.size(), Constants.DUMP_MAX_ROWS);
+		System.out.println("DB dump (" + what + "): " + ((shown < records.size()) ? "more than " + shown : shown) + " records");
+		for (DatabaseUserDay ud : records.subList(0, shown)) {
+			System.out.println("  " + ud.getSeq() + "\t" + ud.toString().trim());
+		}
+		if (shown < records.size()) {
+			System.out.println("  ... Only the first " + shown + ". Ask for fewer days or one user to see the rest");
+		}
+
+	} // end run
+
+	/**
+	 * @param from	- first epoch day, inclusive
+	 * @param to	- last epoch day, inclusive
+	 * @param user	- just this user. "" for everyone
+	 * @return		- the records, by day then username. For everyone, it stops one past DUMP_MAX_ROWS
+	 */
+	private List<DatabaseUserDay> query(int from, int to, String user) throws DatabaseException {
+
+		if (!user.isEmpty()) {
+			return db.queryUser(user, from, to);
+		}
+		List<DatabaseUserDay> records = new ArrayList<DatabaseUserDay>();
+		EntityCursor<DatabaseUserDay> uds = db.getUserDays(from, to + 1);
+		try {
+			for (DatabaseUserDay ud = uds.next(); ud != null && records.size() <= Constants.DUMP_MAX_ROWS; ud = uds.next()) {
+				records.add(ud);
+			}
+		} finally {
+			uds.close();
+		}
+		return records;
+
+	} // end query
+
+} // end class DatabaseDump
@@ -0,0 +1,50 @@
+package rfid_reader;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+
+// How far into a ScanJournal the database is: the sequence number of the last journaled scan
+// that has been written. The scan writer updates it in the same transaction as the scans, so after
+// a crash the journal is replayed from exactly where the database left off (no scan lost, none twice).
+// The mark is only good for the journal file it came from (journalId). A new journal file starts its
+// sequence numbers over, so a mark from the one before it means nothing to it.
+
+@Entity
+public class DatabaseJournalMark {
+
+	@PrimaryKey
+	private String journal;				// Which journal. There's only the one today
+
+	private long applied;				// Sequence number of the last scan in the database
+
+	private long journalId;				// ScanJournal.getId() of the file
+
+	/** A default constructor is needed by the DPL for deserialization. */
+	private DatabaseJournalMark() {
+
+	}
+
+	public DatabaseJournalMark(String journal, long journalId, long applied) {
+		this.journal = journal;
+		this.journalId = journalId;
+		this.applied = applied;
+	}
+
+	public String getJournal() {
+		return journal;
+	}
+
+	public long getApplied() {
+		return applied;
+	}
+
+	public long getJournalId() {
+		return journalId;
+	}
+
+	public String toString() {
+		return journal + " " + Long.toHexString(journalId) + " " + applied;
+	}
+
+} // end class DatabaseJournalMark
@@ -0,0 +1,102 @@
+/**
+ * Name:
+ * 		DatabaseMutations - DPL class evolution for databases written by older versions
+ *
+ * Description:
+ * 		Scan times used to be stored as java.util.Date. They're now epoch millisecond longs (see Days).
+ * 		The DPL needs to be told how to read the old format, in the DatabaseUserTimelogs of the original
+ * 		DatabaseDay records:
+ * 			- DatabaseUserTimelog (version 0) timeIn/timeOut: Date to epoch millis, and totalTimeToday: Long
+ * 			  to long. Converters, so records are converted as they're read. Database copies them into
+ * 			  DatabaseUserDay records in the new format (see migrateLegacyDays)
+ * 		The DatabaseDay's "yyyy/MM/dd" String key is parsed by Database as it converts the day.
+ *
+ * 		A mutation for a class version a database doesn't have is ignored, so one set works for
+ * 		every database. Conversions are stored in the catalog, so they must never change. If the format
+ * 		changes again add new ones.
+ */
+
+package rfid_reader;
+
+import java.util.Date;
+
+import com.sleepycat.persist.evolve.Conversion;
+import com.sleepycat.persist.evolve.Converter;
+import com.sleepycat.persist.evolve.Mutations;
+import com.sleepycat.persist.model.EntityModel;
+
+public class DatabaseMutations {
+
+	private static final String PACKAGE = "rfid_reader.";
+
+	private DatabaseMutations() {
+	}
+
+	/**
+	 * @return - mutations for StoreConfig.setMutations
+	 */
+	public static Mutations get() {
+
+		Mutations mutations = new Mutations();
+
+		mutations.addConverter(new Converter(PACKAGE + "DatabaseUserTimelog", 0, "timeIn", new DateToMillis()));
+		mutations.addConverter(new Converter(PACKAGE + "DatabaseUserTimelog", 0, "timeOut", new DateToMillis()));
+		mutations.addConverter(new Converter(PACKAGE + "DatabaseUserTimelog", 0, "totalTimeToday", new Unbox()));
+
+		return mutations;
+
+	} // end get
+
+	/**
+	 * java.util.Date (null = none) to epoch millis (0 = none)
+	 */
+	static class DateToMillis implements Conversion {
+
+		private static final long serialVersionUID = 1L;
+
+		public void initialize(EntityModel model) {
+		}
+
+		public Object convert(Object fromValue) {
+			return (fromValue == null) ? 0L : ((Date) fromValue).getTime();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof DateToMillis;
+		}
+
+		@Override
+		public int hashCode() {
+			return DateToMillis.class.getName().hashCode();
+		}
+
+	} // end class DateToMillis
+
+	/**
+	 * Long to long. The DPL won't unbox on its own (a null has no primitive value). null is 0
+	 */
+	static class Unbox implements Conversion {
+
+		private static final long serialVersionUID = 1L;
+
+		public void initialize(EntityModel model) {
+		}
+
+		public Object convert(Object fromValue) {
+			return (fromValue == null) ? 0L : fromValue;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Unbox;
+		}
+
+		@Override
+		public int hashCode() {
+			return Unbox.class.getName().hashCode();
+		}
+
+	} // end class Unbox
+
+} // end class DatabaseMutations
@@ -0,0 +1,118 @@
+package rfid_reader;
+
+import static com.sleepycat.persist.model.Relationship.MANY_TO_ONE;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.SecondaryKey;
+
+
+// One user's time log for one day, stored as its own small record.
+// This replaces the original layout where a DatabaseDay held a map of every user's
+// DatabaseUserTimelog. With that layout each scan re-read and re-wrote the whole day
+// (every user that had scanned that day), so the cost of a scan grew with attendance.
+// Now a scan reads and writes exactly one record.
+//
+// Primary key is (day, username). The day is also a secondary key so we can
+// fetch everyone for a given day without knowing their names, and so is the
+// username, so one user's days can be found without scanning everyone's.
+//
+// seq is a change sequence number, stamped by the writer each time the record is
+// written (see Database.writeBatch). It's a secondary key so the incremental report
+// can find just the records that changed since the last report.
+//
+// The day is an epoch day int (see Days), not "yyyy/MM/dd".
+
+@Entity
+public class DatabaseUserDay {
+
+	@PrimaryKey
+	private DatabaseUserDayKey key;
+
+	@SecondaryKey(relate=MANY_TO_ONE)
+	private int day;							// Same as key.day - epoch day
+
+	@SecondaryKey(relate=MANY_TO_ONE)
+	private String username;					// Same as key.username
+
+	private DatabaseUserTimelog timelog;		// In/out times, check-ins and time today
+
+	@SecondaryKey(relate=MANY_TO_ONE)
+	private long seq;							// Change sequence number of the last write. 0 if converted from a record that never had one
+
+	/** A default constructor is needed by the DPL for deserialization. */
+	private DatabaseUserDay() {
+
+	}
+
+	/**
+	 * @param day		- epoch day (see Days)
+	 * @param timelog	- the user's time log for the day
+	 */
+	public DatabaseUserDay(int day, DatabaseUserTimelog timelog) {
+		this.key = new DatabaseUserDayKey(day, timelog.getUsername());
+		this.day = day;
+		this.username = timelog.getUsername();
+		this.timelog = timelog;
+	}
+
+	/**
+	 * New record for a user's first scan (a login) of the day
+	 *
+	 * @param day	- epoch day
+	 * @param user	- name of the user
+	 * @param date	- scan in timestamp, epoch millis
+	 */
+	public DatabaseUserDay(int day, String user, long date) {
+		this(day, new DatabaseUserTimelog(user, date));
+	}
+
+	/**
+	 * Copy of this record. The scan pipeline queues copies for the writer thread
+	 * so it never serializes a record while a scan is updating it. 
+	 * 
+	 * @return - a new record with its own copy of the timelog
+	 */
+	public DatabaseUserDay copy() {
+		return new DatabaseUserDay(day, new DatabaseUserTimelog(timelog));
+	}
+
+	public DatabaseUserDayKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return - epoch day. Days.format(getDay()) for "yyyy/MM/dd"
+	 */
+	public int getDay() {
+		return day;
+	}
+
+	public String getUsername() {
+		return key.getUsername();
+	}
+
+	public DatabaseUserTimelog getTimelog() {
+		return timelog;
+	}
+
+	/**
+	 * @return - change sequence number of the last write. 0 if it was written before we had them
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Only the DB writer calls this, right before it puts the record. 
+	 * Nothing else reads seq from a cached record.
+	 */
+	void setSeq(long seq) {
+		this.seq = seq;
+	}
+
+	public String toString() {
+		return Days.format(day) + " " + timelog.toString();
+	}
+
+} // end class DatabaseUserDay
@@ -0,0 +1,46 @@
+package rfid_reader;
+
+import com.sleepycat.persist.model.KeyField;
+import com.sleepycat.persist.model.Persistent;
+
+
+// Composite primary key for a DatabaseUserDay record: one record per (day, username).
+// The DPL sorts composite keys by KeyField order, so all of a day's records are adjacent
+// in the B-tree and sorted by username within the day. That lets a report (or a range query)
+// walk the primary index in date order without touching a secondary index.
+//
+// The day is an epoch day (see Days): 4 bytes that compare as an int, where the "yyyy/MM/dd"
+// String the original DatabaseDay was keyed by is 11 bytes compared a character at a time.
+
+@Persistent
+public class DatabaseUserDayKey {
+
+	@KeyField(1)
+	private int day;			// Epoch day in Constants.TIME_ZONE
+
+	@KeyField(2)
+	private String username;
+
+	/** A default constructor is needed by the DPL for deserialization. */
+	private DatabaseUserDayKey() {
+
+	}
+
+	public DatabaseUserDayKey(int day, String username) {
+		this.day = day;
+		this.username = username;
+	}
+
+	public int getDay() {
+		return day;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String toString() {
+		return Days.format(day) + " " + username;
+	}
+
+} // end class DatabaseUserDayKey
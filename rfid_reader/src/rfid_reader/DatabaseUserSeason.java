@@ -0,0 +1,113 @@
+package rfid_reader;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+
+// One user's running totals for one build season: minutes, check-ins, days attended and the
+// first and last day they scanned. The sheets used to get these by adding up every per-day row
+// of the report. Now the writer keeps them up to date as it writes each DatabaseUserDay
+// (same transaction, see Database.putUserDay), so a season summary reads one record per user.
+//
+// A season is a calendar year. Build season is January to April so that's close enough.
+
+@Entity
+public class DatabaseUserSeason {
+
+	@PrimaryKey
+	private DatabaseUserSeasonKey key;
+
+	private long totalMinutes = 0;		// Sum of the days' Total Time
+	private int checkins = 0;			// Sum of the days' Checkins
+	private int days = 0;				// Days with a record (scanned in at least once)
+	private Integer firstDay;			// Epoch day. null until the first day is added
+	private Integer lastDay;
+
+	/** A default constructor is needed by the DPL for deserialization. */
+	private DatabaseUserSeason() {
+
+	}
+
+	public DatabaseUserSeason(DatabaseUserSeasonKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * @param day	- epoch day
+	 * @return		- the season that day is in ("yyyy")
+	 */
+	public static String seasonOf(int day) {
+		return Integer.toString(Days.year(day));
+	}
+
+	/**
+	 * Fold one change to a user's day into the totals
+	 *
+	 * @param before	- the day's record before the change. null if this is the day's first record
+	 * @param after		- the day's record after the change
+	 */
+	public void add(DatabaseUserDay before, DatabaseUserDay after) {
+
+		DatabaseUserTimelog a = after.getTimelog();
+		totalMinutes += a.getTotalTimeToday();
+		checkins += a.getCheckins();
+		if (before == null) {
+			days++;
+		} else {
+			DatabaseUserTimelog b = before.getTimelog();
+			totalMinutes -= b.getTotalTimeToday();
+			checkins -= b.getCheckins();
+		}
+
+		int day = after.getDay();
+		if (firstDay == null || day < firstDay) {
+			firstDay = day;
+		}
+		if (lastDay == null || day > lastDay) {
+			lastDay = day;
+		}
+
+	} // end add
+
+	public DatabaseUserSeasonKey getKey() {
+		return key;
+	}
+
+	public String getSeason() {
+		return key.getSeason();
+	}
+
+	public String getUsername() {
+		return key.getUsername();
+	}
+
+	public long getTotalMinutes() {
+		return totalMinutes;
+	}
+
+	public int getCheckins() {
+		return checkins;
+	}
+
+	public int getDays() {
+		return days;
+	}
+
+	/**
+	 * @return - epoch day, or null if no days were added
+	 */
+	public Integer getFirstDay() {
+		return firstDay;
+	}
+
+	public Integer getLastDay() {
+		return lastDay;
+	}
+
+	public String toString() {
+		return key + " [minutes: " + totalMinutes + " check-ins: " + checkins + " days: " + days
+				+ " first: " + ((firstDay == null) ? null : Days.format(firstDay))
+				+ " last: " + ((lastDay == null) ? null : Days.format(lastDay)) + "]";
+	}
+
+} // end class DatabaseUserSeason
@@ -0,0 +1,41 @@
+package rfid_reader;
+
+import com.sleepycat.persist.model.KeyField;
+import com.sleepycat.persist.model.Persistent;
+
+
+// Composite primary key for a DatabaseUserSeason record: one record per (season, username).
+// Sorted by season, then username, so one season's totals are a single range of the B-tree.
+
+@Persistent
+public class DatabaseUserSeasonKey {
+
+	@KeyField(1)
+	private String season;		// Year of the build season - "yyyy"
+
+	@KeyField(2)
+	private String username;
+
+	/** A default constructor is needed by the DPL for deserialization. */
+	private DatabaseUserSeasonKey() {
+
+	}
+
+	public DatabaseUserSeasonKey(String season, String username) {
+		this.season = season;
+		this.username = username;
+	}
+
+	public String getSeason() {
+		return season;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String toString() {
+		return season + " " + username;
+	}
+
+} // end class DatabaseUserSeasonKey
@@ -1,37 +1,18 @@
 package rfid_reader;
 
-import static com.sleepycat.persist.model.DeleteAction.CASCADE;
-import static com.sleepycat.persist.model.Relationship.MANY_TO_ONE;
-import static com.sleepycat.persist.model.Relationship.ONE_TO_ONE;
-
-import com.sleepycat.je.DatabaseException;
-import com.sleepycat.je.Environment;
-import com.sleepycat.je.EnvironmentConfig;
-import com.sleepycat.je.Transaction;
-import com.sleepycat.persist.EntityCursor;
-import com.sleepycat.persist.EntityStore;
-import com.sleepycat.persist.PrimaryIndex;
-import com.sleepycat.persist.SecondaryIndex;
-import com.sleepycat.persist.StoreConfig;
-import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.Persistent;
-import com.sleepycat.persist.model.PrimaryKey;
-
-import rfid_reader.Constants.LoginType;
 
-import com.sleepycat.persist.model.*;
-
-import java.text.SimpleDateFormat;
-import java.time.*;
-import java.util.Date;
+import java.util.Objects;
 
 
 // A User's time log record can be added to a Day. 
 // It has an in/out timestamp, the number of check-ins, and total time the user
 // has accumulated for a single day
 // 
+// Timestamps are epoch milliseconds (0 = none). They used to be java.util.Date objects;
+// Database registers the conversion for records written before version 1 (see DatabaseMutations).
 
-@Persistent
+@Persistent(version=1)							// 1: Date timestamps to epoch millis, Long total to long
 public class DatabaseUserTimelog {
 
 
@@ -43,17 +24,17 @@ public class DatabaseUserTimelog {
 	
 	//private ZonedDateTime timeIn; 			// Scanned in timestamp
 	//private ZonedDateTime timeOut; 			// Scanned out timestamp
-	private Date timeIn; 						// Scanned in timestamp
-	private Date timeOut; 						// Scanned out timestamp
+	private long timeIn; 						// Scanned in timestamp, epoch millis. 0 if not scanned in
+	private long timeOut; 						// Scanned out timestamp, epoch millis. 0 if none
 	private int			  checkins = 0; 		// Number of checkings today
 	//private Period	  totalTimeToday;		// Total time spent in lab today (HH:MM:SS)
-	private Long		  totalTimeToday = 0L; 	// Total time spent in lab in minutes
+	private long		  totalTimeToday = 0; 	// Total time spent in lab in minutes
 	
 	public DatabaseUserTimelog(String name) {
 	    this.username = name;
 	}
 	//public  DatabaseUserTimelog(String username, ZonedDateTime timeIn) {
-	public  DatabaseUserTimelog(String username, Date timeIn) {
+	public  DatabaseUserTimelog(String username, long timeIn) {
 		this.username = username;
 		this.timeIn = timeIn;
 	}
@@ -61,51 +42,59 @@ public class DatabaseUserTimelog {
 	/** A default constructor is needed by the DPL for deserialization. */
 	private DatabaseUserTimelog() {
 	}
+	
+	/** Copy constructor */
+	public DatabaseUserTimelog(DatabaseUserTimelog other) {
+		this.username 		= other.username;
+		this.timeIn 		= other.timeIn;
+		this.timeOut 		= other.timeOut;
+		this.checkins 		= other.checkins;
+		this.totalTimeToday = other.totalTimeToday;
+	}
 
 	/**
 	 * Based on the existing timestand and current user record, 
 	 * determine if this is a login or logout and update checkins and elapsed time properly
 	 * 
-	 * @param date - current timestamp of the tagswipe
+	 * @param date - current timestamp of the tagswipe, epoch millis
 	 * @return LoginType - login or logout or mismatched...
 	 */
-	public Constants.LoginType update(Date date) {
+	public Constants.LoginType update(long date) {
 
-		if (timeIn == null) {			// If never scanned in
+		if (timeIn == 0) {				// If never scanned in
 			this.timeIn = date;
-			Debug.log("Scanning in for today: " + username);
+			Log.debug("Scanning in for today: {}", username);
 			return Constants.LoginType.LOGIN; 
 		}
 		
 		// If here, we have a timeIn logged for this user. This must be a timeOut time... (e.g. a logout!)
 		// Validate that current time is greater thant the timeIn time
-		if (timeIn.compareTo(date) > 0) {
-			System.err.println("Error: checkin time " + timeIn + " is before the checkout time " + date + " for user " + username );
+		if (timeIn > date) {
+			System.err.println("Error: checkin time " + Days.formatTime(timeIn) + " is before the checkout time " + Days.formatTime(date) + " for user " + username );
 			System.err.println("Possible time issue on RFID reader system. Please alert a mentor.");
 			return null;
 		}
 		
 		// Make sure timeIn and timeOut are on the same day!!!! cannot span days!!!
-    	SimpleDateFormat sd = new SimpleDateFormat("yyyy/MM/dd");
-    	String timeIn_day  = sd.format(timeIn);					// This is just the year/month/day
-    	String current_day = sd.format(date);
-    	if (!timeIn_day.equals(current_day)) {
-    		timeIn = null; 								// Clear scan-in time to prep for a new scan in...
+    	if (Days.of(timeIn) != Days.of(date)) {		// Epoch days in the lab's time zone
+    		timeIn = 0; 								// Clear scan-in time to prep for a new scan in...
     		return Constants.LoginType.INVALID_TIME_SPAN;
     	
     	}
     	
 		// Determine delta time and update totalTimeToday field
-		Debug.log("timeIn: " + timeIn.toString() + " current time: " + date.toString());
-		long diff = date.getTime() - timeIn.getTime(); 	// Get delta time in milliseconds
+		if (Log.isDebugEnabled()) {						// Don't format times on every scan just to throw them away
+			Log.debug("timeIn: {} current time: {}", Days.formatTime(timeIn), Days.formatTime(date));
+		}
+		long diff = date - timeIn; 					// Get delta time in milliseconds
 		// TODO: Make sure this is not negative!! e.g. clock issue
 		
 		long diffMinutes = diff / 1000 / 60; 	// Convert ms to minutes
-		Debug.log("diff minutes: " + diffMinutes);
+		Log.debug("diff minutes: {}", diffMinutes);
 		totalTimeToday += diffMinutes; 
-		timeIn = null; 								// Clear scan in time to prep for a new scan in...
+		timeIn = 0; 								// Clear scan in time to prep for a new scan in...
 		checkins++;									// Count this is a checkin for today
-		Debug.log("Scanning out for today");
+		Log.debug("Scanning out for today");
 		return Constants.LoginType.LOGOUT;
 		
 		
@@ -120,24 +109,31 @@ public class DatabaseUserTimelog {
 	}
 
 	//public ZonedDateTime getTimeIn() {
-	public Date getTimeIn() {
+	public long getTimeIn() {
 		return timeIn;
 	}
 	//public void setTimeIn(ZonedDateTime timeIn) {
-	public void setTimeIn(Date timeIn) {
+	public void setTimeIn(long timeIn) {
 		this.timeIn = timeIn;
 	}
 
-	public Date getTimeOut() {
+	/**
+	 * @return - true if scanned in and not out yet
+	 */
+	public boolean isSignedIn() {
+		return timeIn != 0;
+	}
+
+	public long getTimeOut() {
 		return timeOut;
 	}
 	//public void setTimeOut(ZonedDateTime timeOut) {
-	public void setTimeOut(Date timeOut) {
+	public void setTimeOut(long timeOut) {
 		this.timeOut = timeOut;
 	}
 
 	//public Period getTotalTimeToday() {
-	public Long getTotalTimeToday() {
+	public long getTotalTimeToday() {
 		return totalTimeToday;
 	}
 
@@ -146,14 +142,26 @@ public class DatabaseUserTimelog {
 	}
 	
 	
+	/**
+	 * @param other	- another timelog
+	 * @return		- true if every field matches
+	 */
+	public boolean sameAs(DatabaseUserTimelog other) {
+		return Objects.equals(username, other.username)
+				&& timeIn == other.timeIn
+				&& timeOut == other.timeOut
+				&& checkins == other.checkins
+				&& totalTimeToday == other.totalTimeToday;
+	}
+	
 	public String toString() {
 		StringBuffer buff = new StringBuffer();
 		buff.append("[username: ");
 		buff.append(username);
 		buff.append(" timeIn: ");
-		buff.append(timeIn);
+		buff.append(Days.formatTime(timeIn));
 		buff.append(" timeOut: ");
-		buff.append(timeOut);
+		buff.append(Days.formatTime(timeOut));
 		buff.append(" Check-ins ");
 		buff.append(checkins);
 		buff.append(" Total time today: ");
@@ -0,0 +1,117 @@
+/**
+ * Name:
+ * 		Days - epoch days and epoch millisecond timestamps, in the lab's time zone
+ *
+ * Description:
+ * 		The database used to store days as "yyyy/MM/dd" Strings and scan times as java.util.Date.
+ * 		Now a day is an int (days since 1970/01/01 in Constants.TIME_ZONE, same as LocalDate.toEpochDay)
+ * 		and a scan time is a long (milliseconds since 1970/01/01 UTC, same as Date.getTime). Both sort
+ * 		the same way as the values they replace, are a fraction of the size in a record or a B-tree key,
+ * 		and compare as plain numbers.
+ *
+ * 		"yyyy/MM/dd" is still what people see (reports, queries, the command line). These convert
+ * 		at those edges.
+ */
+
+package rfid_reader;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.time.zone.ZoneRules;
+
+public final class Days {
+
+	public static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+	public static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(Constants.TIME_ZONE);
+
+	// --date on the command line: "yyyy/MM/dd HH:mm[:ss]" or "yyyy/MM/dd hh:mm[:ss] AM|PM"
+	private static final DateTimeFormatter ARG_FORMAT_24 = new DateTimeFormatterBuilder()
+			.appendPattern("yyyy/MM/dd H:mm[:ss]").toFormatter(Locale.US);
+	private static final DateTimeFormatter ARG_FORMAT_12 = new DateTimeFormatterBuilder()
+			.parseCaseInsensitive().appendPattern("yyyy/MM/dd h:mm[:ss] a").toFormatter(Locale.US);
+
+	// Time of day in an imported sheet: "HH:mm[:ss]" or "hh:mm[:ss] AM|PM"
+	private static final DateTimeFormatter TIME_OF_DAY_24 = new DateTimeFormatterBuilder()
+			.appendPattern("H:mm[:ss]").toFormatter(Locale.US);
+	private static final DateTimeFormatter TIME_OF_DAY_12 = new DateTimeFormatterBuilder()
+			.parseCaseInsensitive().appendPattern("h:mm[:ss] a").toFormatter(Locale.US);
+
+	private static final ZoneRules RULES = Constants.TIME_ZONE.getRules();
+
+	private Days() {
+	}
+
+	/**
+	 * @param millis	- timestamp, epoch milliseconds
+	 * @return			- the day it falls on in the lab's time zone, as an epoch day
+	 */
+	public static int of(long millis) {
+		long offset = RULES.getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds() * 1000L;
+		return (int) Math.floorDiv(millis + offset, Constants.DAY);
+	}
+
+	/**
+	 * @param day	- "yyyy/MM/dd"
+	 * @return		- epoch day
+	 * @throws DateTimeParseException if it isn't a yyyy/MM/dd date
+	 */
+	public static int parse(CharSequence day) {
+		return (int) LocalDate.parse(day, DAY_FORMAT).toEpochDay();
+	}
+
+	/**
+	 * @param day	- epoch day
+	 * @return		- "yyyy/MM/dd"
+	 */
+	public static String format(int day) {
+		return DAY_FORMAT.format(LocalDate.ofEpochDay(day));
+	}
+
+	/**
+	 * @param time	- "yyyy/MM/dd HH:mm[:ss]" or "yyyy/MM/dd hh:mm[:ss] AM|PM", in the lab's time zone
+	 * @return		- epoch milliseconds
+	 * @throws DateTimeParseException if it isn't either
+	 */
+	public static long parseTime(String time) {
+		String t = time.trim();
+		String upper = t.toUpperCase(Locale.US);
+		DateTimeFormatter format = (upper.endsWith("AM") || upper.endsWith("PM")) ? ARG_FORMAT_12 : ARG_FORMAT_24;
+		return LocalDateTime.parse(t, format).atZone(Constants.TIME_ZONE).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * @param day	- epoch day
+	 * @param time	- time of day, "HH:mm[:ss]" or "hh:mm[:ss] AM|PM", in the lab's time zone
+	 * @return		- epoch milliseconds
+	 * @throws DateTimeParseException if it isn't either
+	 */
+	public static long atTime(int day, String time) {
+		String t = time.trim();
+		String upper = t.toUpperCase(Locale.US);
+		DateTimeFormatter format = (upper.endsWith("AM") || upper.endsWith("PM")) ? TIME_OF_DAY_12 : TIME_OF_DAY_24;
+		return LocalDate.ofEpochDay(day).atTime(LocalTime.parse(t, format)).atZone(Constants.TIME_ZONE).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * @param millis	- timestamp, epoch milliseconds. 0 for none
+	 * @return			- "yyyy/MM/dd HH:mm:ss" in the lab's time zone, or "null" for none
+	 */
+	public static String formatTime(long millis) {
+		return (millis == 0) ? "null" : TIME_FORMAT.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * @param day	- epoch day
+	 * @return		- the year it's in
+	 */
+	public static int year(int day) {
+		return LocalDate.ofEpochDay(day).getYear();
+	}
+
+} // end class Days
@@ -0,0 +1,180 @@
+/**
+ * Name:
+ * 		LatencyHistogram - counts of latencies (in nanoseconds) for percentiles like p50/p99/p999
+ *
+ * Description:
+ * 		Keeping every sample to sort for a percentile doesn't work for millions of scans, and an
+ * 		average hides the slow commits we care about. So samples go in fixed buckets:
+ * 			- 0..15ns get a bucket each
+ * 			- above that, each power of two (16-31, 32-63, ...) is split into 16 equal buckets
+ * 		That's within about 6% of the real value anywhere from nanoseconds to hours, in under
+ * 		1000 buckets (8KB).
+ *
+ * 		Thread safe. Recording a sample doesn't lock or allocate, so any number of threads can
+ * 		record into the same histogram while another one reads percentiles from it.
+ *
+ * 		copy() and minus() give the samples recorded in an interval (see Metrics). It's a JMX
+ * 		MBean too (see LatencyHistogramMBean).
+ */
+
+package rfid_reader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;			// Buckets per power of two
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos - one latency. Negative counts as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+			// Someone else raised the max. Try again
+		}
+	}
+
+	/**
+	 * @return - number of samples recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return - largest sample, nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return - mean of the samples, nanoseconds. 0 if there aren't any
+	 */
+	public double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile	- 0..100, e.g. 99.9 for p999
+	 * @return				- the latency that many percent of the samples are at or below, nanoseconds
+	 * 						  (the top of its bucket, so it never under reports). 0 if there aren't any
+	 */
+	public long percentile(double percentile) {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += counts.get(i);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getP50() {
+		return percentile(50);
+	}
+
+	public long getP99() {
+		return percentile(99);
+	}
+
+	public long getP999() {
+		return percentile(99.9);
+	}
+
+	/**
+	 * @return - a copy of the histogram as it is now. Samples recorded while it's being copied
+	 * 			 may be in some of its totals and not others
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; i++) {
+			h.counts.set(i, counts.get(i));
+		}
+		h.count.set(count.get());
+		h.sum.set(sum.get());
+		h.max.set(max.get());
+		return h;
+	}
+
+	/**
+	 * @param earlier	- a copy of this histogram from before
+	 * @return			- the samples recorded since. Its max is the top of the highest bucket
+	 * 					  with a sample in it (capped at this max), since the real one isn't kept
+	 */
+	public LatencyHistogram minus(LatencyHistogram earlier) {
+		LatencyHistogram h = new LatencyHistogram();
+		long top = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = counts.get(i) - earlier.counts.get(i);
+			if (n > 0) {
+				h.counts.set(i, n);
+				top = highest(i);
+			}
+		}
+		h.count.set(Math.max(0, count.get() - earlier.count.get()));
+		h.sum.set(Math.max(0, sum.get() - earlier.sum.get()));
+		h.max.set(Math.min(top, max.get()));
+		return h;
+	}
+
+	/**
+	 * @return - "n=... mean=... p50=... p99=... p999=... max=..." in milliseconds
+	 */
+	public String toString() {
+		return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+				getCount(), getMean() / 1e6, millis(percentile(50)), millis(percentile(99)),
+				millis(percentile(99.9)), millis(getMax()));
+	}
+
+	static double millis(long nanos) {
+		return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @return - the largest value that goes in bucket i
+	 */
+	private static long highest(int i) {
+		if (i < SUB_BUCKETS) {
+			return i;
+		}
+		int shift = i / SUB_BUCKETS - 1;
+		long sub = SUB_BUCKETS + i % SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+} // end class LatencyHistogram
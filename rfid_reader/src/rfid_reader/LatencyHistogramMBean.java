@@ -0,0 +1,25 @@
+/**
+ * Name:
+ * 		LatencyHistogramMBean - what JMX (jconsole, VisualVM) sees of a LatencyHistogram
+ *
+ * Description:
+ * 		All latencies are in nanoseconds. See Metrics for the ones that are registered.
+ */
+
+package rfid_reader;
+
+public interface LatencyHistogramMBean {
+
+	long getCount();
+
+	double getMean();
+
+	long getP50();
+
+	long getP99();
+
+	long getP999();
+
+	long getMax();
+
+} // end interface LatencyHistogramMBean
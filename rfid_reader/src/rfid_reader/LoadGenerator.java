@@ -0,0 +1,263 @@
+/**
+ * Name:
+ * 		LoadGenerator - how many scans a second can we take, and how long until they're on disk?
+ *
+ * Description:
+ * 		Simulates a season for any number of users on any number of readers at once, through the
+ * 		same code the kiosk runs: an RFIDreader thread per reader, each reading a SimulatedTagReader,
+ * 		calling write_user, which classifies the scan and hands it to the ScanPipeline, whose writer
+ * 		commits it to a scratch DB (Constants.DATABASE_DIR_LOAD, deleted at the start of every run).
+ *
+ * 		Knobs:
+ * 			users		- users in the (generated) roster
+ * 			days		- days of the season
+ * 			taps		- times each user taps in each day (alternating login, logout, login, ...)
+ * 			threads		- readers tapping at the same time. The users are dealt out between them
+ *
+ * 		Each day is run in rounds, one per tap: every user taps once on their reader, then the readers
+ * 		wait for each other while the simulated clock moves on to the next tap (spread over
+ * 		SESSION_HOURS from the --date time of day). Inside a round the readers tap as fast as
+ * 		write_user and the pipeline will let them.
+ *
+ * 		Reports throughput (committed scans per second of wall clock) and the scan-to-commit
+ * 		latency histogram: from the moment a reader got a UID until the transaction holding that
+ * 		scan committed. Greetings (System.out) are thrown away during the run so the console
+ * 		doesn't become the bottleneck we measure.
+ *
+ * 		Use it to compare durability modes and batch delays, or to see how a change to the scan
+ * 		path scales with readers. Like Benchmark, the numbers only mean something compared with
+ * 		another run on the same machine.
+ *
+ * Usage:
+ * 		java -classpath "bin;lib\*" rfid_reader.Tester --users=2000 --days=46 --taps=4 --threads=8 [--durability=sync|nosync|group]
+ * 			[--profile=kiosk|report|default]
+ */
+
+package rfid_reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+
+public class LoadGenerator {
+
+	private static final long SESSION_HOURS = 3;			// A day's taps are spread over this long (like Tester)
+	private static final long FIRST_UID = 0x10000000L;		// Generated tags are 8 hex digits from here
+
+	private final int users;
+	private final int days;
+	private final int taps;
+	private final int threads;
+	private Constants.CommitDurability durability = Constants.CommitDurability.GROUP;
+	private long batchDelayMs = Constants.SCAN_BATCH_DELAY_MS;
+	private Constants.DatabaseProfile profile = null;		// null for the kiosk's (KIOSK)
+
+	/**
+	 * @param users		- users in the roster
+	 * @param days		- days to simulate
+	 * @param taps		- taps per user per day
+	 * @param threads	- simulated readers tapping concurrently
+	 */
+	public LoadGenerator(int users, int days, int taps, int threads) {
+		if (users < 1 || days < 1 || taps < 1 || threads < 1) {
+			throw new IllegalArgumentException("Users, days, taps and threads must all be at least 1");
+		}
+		this.users = users;
+		this.days = days;
+		this.taps = taps;
+		this.threads = Math.min(threads, users);			// A reader with no users would have nothing to tap
+	}
+
+	/**
+	 * @param durability	- how the scan writer commits
+	 * @param batchDelayMs	- group commit wait
+	 * @return				- this
+	 */
+	public LoadGenerator setDurability(Constants.CommitDurability durability, long batchDelayMs) {
+		this.durability = durability;
+		this.batchDelayMs = batchDelayMs;
+		return this;
+	}
+
+	/**
+	 * @param profile	- how JE is tuned (see Database.setProfile)
+	 * @return			- this
+	 */
+	public LoadGenerator setProfile(Constants.DatabaseProfile profile) {
+		this.profile = profile;
+		return this;
+	}
+
+	/**
+	 * Build the scratch roster and DB, run the season and print the results
+	 *
+	 * @param startTime	- first tap of the season, epoch millis
+	 * @throws IOException				- couldn't write the roster or clear out the last run
+	 * @throws InterruptedException
+	 */
+	public void run(long startTime) throws IOException, InterruptedException {
+
+		Benchmark.deleteDir(Constants.DATABASE_DIR_LOAD);
+		String rosterFile = Constants.DATABASE_DIR_LOAD + "/roster.csv";
+		List<List<String>> slices = writeRoster(rosterFile);
+		if (!UserTags.read_user_tags(rosterFile)) {
+			return;
+		}
+
+		// The clock only moves between rounds, when the readers are all waiting for each other
+		final SimulatedClock clock = new SimulatedClock(Instant.ofEpochMilli(startTime), 0);
+		Database db = new Database();
+		db.setClock(clock);
+		db.setProfile(profile);
+		db.DBinit(Constants.DATABASE_DIR_LOAD + "/db", false);
+		ScanPipeline pipeline = new ScanPipeline(db, durability, batchDelayMs);
+		pipeline.start();
+		RFIDreader.useDatabase(db, pipeline);
+
+		// One phase per round. The last reader to finish a round sets the clock for the next one.
+		// The phaser terminates when the last round is done, which stops the readers
+		final ZonedDateTime start = Instant.ofEpochMilli(startTime).atZone(Constants.TIME_ZONE);
+		final int rounds = days * taps;
+		final long tapSpacing = SESSION_HOURS * Constants.HOUR / taps;
+		Phaser barrier = new Phaser(threads + 1) {
+			protected boolean onAdvance(int phase, int parties) {
+				if (phase == rounds) {
+					return true;
+				}
+				long day = start.plusDays(phase / taps).toInstant().toEpochMilli();	// Same time of day, even across a daylight saving change
+				clock.set(day + (phase % taps) * tapSpacing);
+				return false;
+			}
+		};
+
+		System.out.println("Load test: " + users + " users, " + days + " days, " + taps + " taps per user per day, "
+				+ threads + " readers, " + durability + " durability, "
+				+ ((profile == null) ? Constants.DatabaseProfile.KIOSK : profile) + " profile");
+
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {		// Greetings go nowhere
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		List<Thread> readers = new ArrayList<Thread>();
+		long began = System.nanoTime();
+		try {
+			for (int i = 0; i < threads; i++) {
+				TagReader reader = new RoundReader(new SimulatedTagReader("Load reader " + i, slices.get(i), 0, i), barrier);
+				Thread t = new Thread(new RFIDreader(reader), "rfid-" + reader.getName());
+				t.start();
+				readers.add(t);
+			}
+			while (barrier.arriveAndAwaitAdvance() >= 0) {		// Round 0 starts when every reader is ready
+			}
+		} finally {
+			if (!barrier.isTerminated()) {						// We're bailing out. Don't leave the readers waiting
+				barrier.forceTermination();
+			}
+			for (Thread t : readers) {
+				t.join();
+			}
+			pipeline.shutdown(TimeUnit.MINUTES.toMillis(5));	// Everything queued is committed before it stops
+			System.setOut(console);
+		}
+		long elapsed = System.nanoTime() - began;
+
+		LatencyHistogram latency = pipeline.getCommitLatency();
+		long expected = (long) users * days * taps;
+		long committed = latency.getCount();
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format("Committed %d scans in %.2fs: %.0f scans/sec, %d commits (%.1f scans per commit)",
+				committed, seconds, committed / seconds, pipeline.getCommits(),
+				(double) committed / Math.max(1, pipeline.getCommits())));
+		System.out.println("Scan to commit latency: " + latency);
+		if (committed != expected) {
+			System.err.println("WARNING: expected " + expected + " scans but " + committed + " were committed");
+		}
+
+		db.close();
+
+	} // end run
+
+	/**
+	 * Write a roster of generated users and deal their tags out to the readers
+	 *
+	 * @param filename	- roster CSV to write (same format as the real one)
+	 * @return			- each reader's tags
+	 * @throws IOException
+	 */
+	private List<List<String>> writeRoster(String filename) throws IOException {
+
+		List<List<String>> slices = new ArrayList<List<String>>();
+		for (int i = 0; i < threads; i++) {
+			slices.add(new ArrayList<String>());
+		}
+
+		new File(filename).getParentFile().mkdirs();
+		try (PrintWriter out = new PrintWriter(filename, StandardCharsets.UTF_8.name())) {
+			out.println("RFID,Barcode,Name,Login Message,Logout Message");
+			for (int i = 0; i < users; i++) {
+				String uid = String.format("%08X", FIRST_UID + i);
+				out.println(uid + ",,\"Load, User " + i + "\",Hi,Bye");
+				slices.get(i % threads).add(uid);
+			}
+		}
+		return slices;
+
+	} // end writeRoster
+
+	/**
+	 * A simulated reader that taps each of its users once per round, then waits
+	 * at the phaser until every reader has finished the round. When the phaser
+	 * terminates the load test is over and readTag throws InterruptedException,
+	 * same as a kiosk shutting down, so RFIDreader.run stops quietly.
+	 */
+	private static class RoundReader implements TagReader {
+
+		private final SimulatedTagReader reader;		// Goes round its tags in order, so a round is one pass
+		private final Phaser rounds;
+		private final int perRound;
+		private int tapped;
+
+		RoundReader(SimulatedTagReader reader, Phaser rounds) {
+			this.reader = reader;
+			this.rounds = rounds;
+			this.perRound = reader.getUidCount();
+			this.tapped = perRound;						// So the first read waits for round 0
+		}
+
+		public String getName() {
+			return reader.getName();
+		}
+
+		public int readTag(TagUid uid) throws CardException, InterruptedException {
+			if (tapped == perRound) {
+				tapped = 0;
+				if (rounds.awaitAdvanceInterruptibly(rounds.arrive()) < 0) {
+					throw new InterruptedException("Load test finished");
+				}
+			}
+			tapped++;
+			return reader.readTag(uid);
+		}
+
+		public void waitForTagRemoved() throws InterruptedException {
+			reader.waitForTagRemoved();
+		}
+
+	} // end class RoundReader
+
+} // end class LoadGenerator
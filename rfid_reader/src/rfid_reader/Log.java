@@ -0,0 +1,451 @@
+/**
+ * Name:
+ * 		Log - leveled logging to a file, without slowing down the scan loop
+ *
+ * Description:
+ * 		Debug.log took a String, so every call built its message (concatenating names, UIDs, times)
+ * 		whether debug was on or not, and with it on it printed straight to the console the students
+ * 		read, on the scanning thread. Now:
+ * 			- messages have a level (ERROR, WARN, INFO, DEBUG). Below the current level a call is a
+ * 			  compare and nothing else
+ * 			- the message is built only if it's going to be logged: "User is: {}" style parameters
+ * 			  (one to three without allocating an array), or a Supplier for anything more involved
+ * 			- a logged message goes on a lock free ring buffer (a compare and set to claim a slot) and a
+ * 			  background thread writes it to Constants.LOG_FILENAME. The scanning thread never waits on
+ * 			  the disk. If the writer falls so far behind that the ring is full, the message is dropped
+ * 			  (and counted) rather than holding up a scan
+ *
+ * 		The file is rolled to <name>.1 when it gets to Constants.LOG_FILE_MAX_BYTES. Messages are
+ * 		formatted on the calling thread, so a parameter that's reused (a TagUid) is logged as it was.
+ * 		An exception passed as the last argument is logged with its stack trace.
+ * 		The level is INFO unless debug is on (-d, see Debug).
+ *
+ * 		If the file can't be written (disk full, locked by an editor) the writer says so once on the
+ * 		console and tries again every Constants.LOG_RETRY_MS. Messages wait on the ring meanwhile, and
+ * 		what doesn't fit is counted as dropped like any other time the writer falls behind.
+ *
+ * 		Line format: yyyy/MM/dd HH:mm:ss.SSS LEVEL [thread] message
+ */
+
+package rfid_reader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+public class Log implements Runnable {
+
+	public enum Level {
+		ERROR,
+		WARN,
+		INFO,
+		DEBUG
+	}
+
+	private static final DateTimeFormatter TIME_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss.SSS").withZone(Constants.TIME_ZONE);
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);	// Writer's nap when the ring is empty
+
+	private static volatile Level level = Level.INFO;
+	private static final Ring ring = new Ring(Constants.LOG_RING_CAPACITY);
+	private static final AtomicLong dropped = new AtomicLong();		// Messages lost to a full ring
+	private static final AtomicBoolean started = new AtomicBoolean();
+	private static volatile boolean stopping = false;
+
+	/**
+	 * @param l - log this level and everything more serious
+	 */
+	public static void setLevel(Level l) {
+		level = l;
+	}
+
+	public static boolean isEnabled(Level l) {
+		return l.ordinal() <= level.ordinal();
+	}
+
+	public static boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG);
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	public static void error(String pattern, Object arg) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, format(pattern, arg));
+		}
+	}
+
+	/**
+	 * @param pattern	- "{}" (if it has one) is replaced by t. The stack trace goes on the lines after
+	 * @param t			- what went wrong
+	 */
+	public static void error(String pattern, Throwable t) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, format(pattern, t) + stackTrace(t));
+		}
+	}
+
+	public static void error(String pattern, Object arg1, Object arg2) {
+		if (isEnabled(Level.ERROR)) {
+			log(Level.ERROR, format(pattern, arg1, arg2));
+		}
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public static void warn(String pattern, Object arg) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, format(pattern, arg));
+		}
+	}
+
+	/**
+	 * @param pattern	- "{}" (if it has one) is replaced by t. The stack trace goes on the lines after
+	 * @param t			- what went wrong
+	 */
+	public static void warn(String pattern, Throwable t) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, format(pattern, t) + stackTrace(t));
+		}
+	}
+
+	public static void warn(String pattern, Object arg1, Object arg2) {
+		if (isEnabled(Level.WARN)) {
+			log(Level.WARN, format(pattern, arg1, arg2));
+		}
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	public static void info(String pattern, Object arg) {
+		if (isEnabled(Level.INFO)) {
+			log(Level.INFO, format(pattern, arg));
+		}
+	}
+
+	public static void info(String pattern, Object arg1, Object arg2) {
+		if (isEnabled(Level.INFO)) {
+			log(Level.INFO, format(pattern, arg1, arg2));
+		}
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	public static void debug(String pattern, Object arg) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, format(pattern, arg));
+		}
+	}
+
+	/**
+	 * @param pattern	- "{}" (if it has one) is replaced by t. The stack trace goes on the lines after
+	 * @param t			- what went wrong
+	 */
+	public static void debug(String pattern, Throwable t) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, format(pattern, t) + stackTrace(t));
+		}
+	}
+
+	public static void debug(String pattern, Object arg1, Object arg2) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, format(pattern, arg1, arg2));
+		}
+	}
+
+	public static void debug(String pattern, Object arg1, Object arg2, Object arg3) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, format(pattern, arg1, arg2, arg3));
+		}
+	}
+
+	/**
+	 * @param message - called for the message only if DEBUG is on
+	 */
+	public static void debug(Supplier<String> message) {
+		if (isEnabled(Level.DEBUG)) {
+			log(Level.DEBUG, message.get());
+		}
+	}
+
+	/**
+	 * Queue a message for the writer thread (starting it the first time)
+	 *
+	 * @param l			- its level. Dropped if that isn't enabled
+	 * @param message	- the finished message
+	 */
+	public static void log(Level l, String message) {
+		if (!isEnabled(l)) {
+			return;
+		}
+		if (!started.get() && started.compareAndSet(false, true)) {
+			start();
+		}
+		if (!ring.offer(System.currentTimeMillis(), l, Thread.currentThread().getName(), message)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return - messages dropped because the writer couldn't keep up
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * "{}" in the pattern is replaced by the next argument, String.valueOf style. Extra {}s stay as they are
+	 */
+	static String format(String pattern, Object... args) {
+		StringBuilder s = new StringBuilder(pattern.length() + 16 * args.length);
+		int from = 0;
+		for (Object arg : args) {
+			int at = pattern.indexOf("{}", from);
+			if (at < 0) {
+				break;
+			}
+			s.append(pattern, from, at).append(arg);
+			from = at + 2;
+		}
+		return s.append(pattern, from, pattern.length()).toString();
+	}
+
+	/**
+	 * @return - "\n" then t's stack trace (and its causes'), without a return at the end
+	 */
+	private static String stackTrace(Throwable t) {
+		StringWriter s = new StringWriter();
+		s.write('\n');
+		t.printStackTrace(new PrintWriter(s));
+		int end = s.getBuffer().length();
+		while (end > 0 && Character.isWhitespace(s.getBuffer().charAt(end - 1))) {
+			end--;
+		}
+		return s.getBuffer().substring(0, end);
+	}
+
+	private static void start() {
+
+		final Thread writer = new Thread(new Log(), "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Whatever's still on the ring goes to the file before we exit
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				stopping = true;
+				LockSupport.unpark(writer);
+				try {
+					writer.join(2000);
+				} catch (InterruptedException e) {
+					// Exiting anyway
+				}
+			}
+		});
+
+	} // end start
+
+	/**
+	 * Writer thread. Takes messages off the ring and appends them to the log file, flushing
+	 * whenever it catches up. Keeps going (retrying) when the file can't be written
+	 */
+	public void run() {
+
+		File file = new File(Constants.LOG_FILENAME);
+		Writer out = null;
+		long size = 0;
+		long lost = 0;
+		StringBuilder line = new StringBuilder(256);
+		boolean pending = false;							// line has a message that isn't written yet
+		boolean failing = false;							// The file can't be written. We've said so
+
+		while (true) {
+			try {
+				if (!pending) {
+					if (!ring.poll()) {
+						if (out != null) {
+							long d = dropped.get();
+							if (d != lost) {
+								out.write(TIME_FORMAT.format(Instant.now()) + " WARN [log-writer] " + (d - lost) + " messages dropped. The log couldn't keep up\n");
+								lost = d;
+							}
+							out.flush();
+						}
+						if (stopping) {
+							break;
+						}
+						LockSupport.parkNanos(IDLE_NANOS);
+						continue;
+					}
+					line.setLength(0);
+					line.append(TIME_FORMAT.format(Instant.ofEpochMilli(ring.time))).append(' ').append(ring.level)
+							.append(" [").append(ring.thread).append("] ").append(ring.message).append('\n');
+					pending = true;
+				}
+
+				if (out == null || size > Constants.LOG_FILE_MAX_BYTES) {
+					boolean rolled = true;
+					if (out != null) {
+						close(out);
+						out = null;
+						File old = new File(Constants.LOG_FILENAME + ".1");
+						old.delete();
+						rolled = file.renameTo(old);				// Not if something has the file open (on Windows)
+					}
+					if (file.getParentFile() != null) {
+						file.getParentFile().mkdirs();
+					}
+					out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+					size = rolled ? file.length() : 0;				// Couldn't roll it. Try again after another LOG_FILE_MAX_BYTES
+				}
+				out.append(line);
+				size += line.length();
+				pending = false;
+				if (failing) {
+					System.err.println("The log " + Constants.LOG_FILENAME + " can be written again");
+					failing = false;
+				}
+
+			} catch (IOException e) {
+				if (!failing) {
+					System.err.println("WARNING: cannot write the log " + Constants.LOG_FILENAME + ": " + e.getMessage()
+							+ ". Trying again every " + TimeUnit.MILLISECONDS.toSeconds(Constants.LOG_RETRY_MS) + " seconds");
+					failing = true;
+				}
+				if (out != null) {
+					close(out);
+					out = null;
+				}
+				if (stopping) {
+					break;
+				}
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Constants.LOG_RETRY_MS));
+			}
+		}
+
+		if (out != null) {
+			close(out);
+		}
+
+	} // end run
+
+	private static void close(Writer out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// It's going either way. Whatever didn't get written is lost
+		}
+	}
+
+	/**
+	 * Bounded multi producer, single consumer ring of log messages. Each slot has a sequence number
+	 * that says whose turn it is: a producer claims the slot for position p when its sequence is p
+	 * (compare and set on the head), fills it in and sets the sequence to p + 1 to hand it to the
+	 * writer. The writer reads position p when the sequence is p + 1 and gives the slot back for
+	 * p + capacity. The sequence is written after the slot's fields and read before them, so the
+	 * fields don't need to be volatile themselves. No locks, and nothing is allocated per message.
+	 */
+	private static final class Ring {
+
+		private final int mask;
+		private final AtomicLongArray sequence;
+		private final long[] times;
+		private final Level[] levels;
+		private final String[] threads;
+		private final String[] messages;
+		private final AtomicLong head = new AtomicLong();	// Next position to claim
+		private long tail = 0;								// Next position to read. Writer thread only
+
+		// The message poll() took. Writer thread only
+		long time;
+		Level level;
+		String thread;
+		String message;
+
+		/**
+		 * @param capacity - rounded up to a power of two
+		 */
+		Ring(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			mask = size - 1;
+			sequence = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				sequence.set(i, i);
+			}
+			times = new long[size];
+			levels = new Level[size];
+			threads = new String[size];
+			messages = new String[size];
+		}
+
+		/**
+		 * @return - false if the ring is full
+		 */
+		boolean offer(long t, Level l, String th, String m) {
+			long pos;
+			int i;
+			while (true) {
+				pos = head.get();
+				i = (int) pos & mask;
+				long dif = sequence.get(i) - pos;
+				if (dif == 0) {
+					if (head.compareAndSet(pos, pos + 1)) {
+						break;
+					}
+				} else if (dif < 0) {
+					return false;							// The writer hasn't freed this slot yet
+				}
+				// Another thread claimed pos first. Try the next one
+			}
+			times[i] = t;
+			levels[i] = l;
+			threads[i] = th;
+			messages[i] = m;
+			sequence.lazySet(i, pos + 1);					// Ordered after the fields. Publishes them
+			return true;
+		}
+
+		/**
+		 * @return - true if there was a message. It's in time, level, thread and message
+		 */
+		boolean poll() {
+			int i = (int) tail & mask;
+			if (sequence.get(i) != tail + 1) {
+				return false;
+			}
+			time = times[i];
+			level = levels[i];
+			thread = threads[i];
+			message = messages[i];
+			threads[i] = null;
+			messages[i] = null;
+			sequence.lazySet(i, tail + mask + 1);
+			tail++;
+			return true;
+		}
+
+	} // end class Ring
+
+} // end class Log
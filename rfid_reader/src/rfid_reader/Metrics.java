@@ -0,0 +1,255 @@
+/**
+ * Name:
+ * 		Metrics - how long the scan path takes and how often it goes wrong, while the kiosk is running
+ *
+ * Description:
+ * 		Debug.log was all or nothing and just printed. To find out why the kiosk lags at 6pm we need
+ * 		numbers, so the scan path records these as it goes:
+ * 			CARD_READ	- card on the reader to UID read (connect and the Get Data command)
+ * 			USER_LOOKUP	- UID to user (UserTags.getUser)
+ * 			DB_WRITE	- a Database write transaction, begin to commit (a batch of scans, see ScanPipeline)
+ * 			GREETING	- UID read to the greeting printed: the scan lock, lookup, journal, classifying and
+ * 						  queueing the scan, and the console
+ * 		and counts unknown tags, INVALID_TIME_SPAN scans, card errors (exceptions reading or waiting
+ * 		for a card), repeat taps TapDebouncer dropped and reads that failed with an SW1+SW2 status
+ * 		word (by status word).
+ *
+ * 		Recording is a few atomic adds (see LatencyHistogram), so it's always on. start() makes them
+ * 		visible two ways:
+ * 			- JMX (jconsole or VisualVM): rfid_reader:type=Latency,name=<histogram> and rfid_reader:type=Counters
+ * 			- every METRICS_INTERVAL_MS a line in METRICS_DIR/metrics_<yyyy-MM-dd>.csv with what happened
+ * 			  in that interval. A new file every day. Files older than METRICS_KEEP_DAYS are deleted
+ */
+
+package rfid_reader;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMBean, Runnable {
+
+	public static final LatencyHistogram CARD_READ = new LatencyHistogram();
+	public static final LatencyHistogram USER_LOOKUP = new LatencyHistogram();
+	public static final LatencyHistogram DB_WRITE = new LatencyHistogram();
+	public static final LatencyHistogram GREETING = new LatencyHistogram();
+
+	private static final LatencyHistogram[] HISTOGRAMS = { CARD_READ, USER_LOOKUP, DB_WRITE, GREETING };
+	private static final String[] NAMES = { "CardRead", "UserLookup", "DatabaseWrite", "Greeting" };
+	private static final String HEADER = "Time,"
+			+ "Card read n,Card read p50 ms,Card read p99 ms,Card read max ms,"
+			+ "User lookup n,User lookup p50 ms,User lookup p99 ms,User lookup max ms,"
+			+ "DB write n,DB write p50 ms,DB write p99 ms,DB write max ms,"
+			+ "Greeting n,Greeting p50 ms,Greeting p99 ms,Greeting max ms,"
+			+ "Unknown tags,Invalid time spans,Card errors,Duplicate taps,SW errors,SW codes";
+
+	private static final AtomicLong unknownTags = new AtomicLong();
+	private static final AtomicLong invalidTimeSpans = new AtomicLong();
+	private static final AtomicLong cardErrors = new AtomicLong();
+	private static final AtomicLong duplicateTaps = new AtomicLong();
+	private static final AtomicLong swErrors = new AtomicLong();
+	private static final ConcurrentMap<Integer, AtomicLong> swCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	// The writer thread's totals as of the last line, so each line is just its interval
+	private final LatencyHistogram[] last = new LatencyHistogram[HISTOGRAMS.length];
+	private final long[] lastCounts = new long[5];
+	private Map<Integer, Long> lastSwCodes = new TreeMap<Integer, Long>();
+	private LocalDate lastDay = null;
+
+	public static void unknownTag() {
+		unknownTags.incrementAndGet();
+	}
+
+	public static void invalidTimeSpan() {
+		invalidTimeSpans.incrementAndGet();
+	}
+
+	public static void cardError() {
+		cardErrors.incrementAndGet();
+	}
+
+	public static void duplicateTap() {
+		duplicateTaps.incrementAndGet();
+	}
+
+	/**
+	 * @param sw - SW1+SW2 status word a read failed with
+	 */
+	public static void swError(int sw) {
+		swErrors.incrementAndGet();
+		AtomicLong n = swCodes.get(sw);
+		if (n == null) {
+			AtomicLong first = new AtomicLong();
+			n = swCodes.putIfAbsent(sw, first);
+			if (n == null) {
+				n = first;
+			}
+		}
+		n.incrementAndGet();
+	}
+
+	public long getUnknownTags() {
+		return unknownTags.get();
+	}
+
+	public long getInvalidTimeSpans() {
+		return invalidTimeSpans.get();
+	}
+
+	public long getCardErrors() {
+		return cardErrors.get();
+	}
+
+	public long getDuplicateTaps() {
+		return duplicateTaps.get();
+	}
+
+	public long getSwErrors() {
+		return swErrors.get();
+	}
+
+	public String getSwCodes() {
+		return formatSwCodes(swCodes());
+	}
+
+	/**
+	 * Register the JMX beans and start writing the metrics file in a background (daemon) thread
+	 */
+	public static void start() {
+
+		Metrics metrics = new Metrics();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (int i = 0; i < HISTOGRAMS.length; i++) {
+				server.registerMBean(HISTOGRAMS[i], new ObjectName("rfid_reader:type=Latency,name=" + NAMES[i]));
+			}
+			server.registerMBean(metrics, new ObjectName("rfid_reader:type=Counters"));
+		} catch (JMException e) {
+			System.err.println("WARNING: cannot register the metrics with JMX: " + e.getMessage());
+		}
+
+		Thread t = new Thread(metrics, "metrics-writer");
+		t.setDaemon(true);
+		t.start();
+
+	} // end start
+
+	public void run() {
+
+		for (int i = 0; i < HISTOGRAMS.length; i++) {
+			last[i] = HISTOGRAMS[i].copy();
+		}
+		lastSwCodes = swCodes();
+		try {
+			while (true) {
+				Thread.sleep(Constants.METRICS_INTERVAL_MS);
+				try {
+					writeLine();
+				} catch (IOException e) {
+					System.err.println("WARNING: cannot write the metrics file: " + e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			// Shutting down
+		}
+
+	} // end run
+
+	/**
+	 * Append what happened since the last line to today's file
+	 */
+	private void writeLine() throws IOException {
+
+		StringBuilder line = new StringBuilder(Days.formatTime(System.currentTimeMillis()));
+		for (int i = 0; i < HISTOGRAMS.length; i++) {
+			LatencyHistogram now = HISTOGRAMS[i].copy();
+			LatencyHistogram interval = now.minus(last[i]);
+			last[i] = now;
+			line.append(',').append(interval.getCount());
+			line.append(String.format(",%.3f,%.3f,%.3f", LatencyHistogram.millis(interval.getP50()),
+					LatencyHistogram.millis(interval.getP99()), LatencyHistogram.millis(interval.getMax())));
+		}
+		long[] counts = { unknownTags.get(), invalidTimeSpans.get(), cardErrors.get(), duplicateTaps.get(), swErrors.get() };
+		for (int i = 0; i < counts.length; i++) {
+			line.append(',').append(counts[i] - lastCounts[i]);
+			lastCounts[i] = counts[i];
+		}
+		Map<Integer, Long> codes = swCodes();
+		Map<Integer, Long> interval = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, Long> e : codes.entrySet()) {
+			Long before = lastSwCodes.get(e.getKey());
+			long n = e.getValue() - ((before == null) ? 0 : before);
+			if (n > 0) {
+				interval.put(e.getKey(), n);
+			}
+		}
+		lastSwCodes = codes;
+		line.append(',').append(formatSwCodes(interval));
+
+		LocalDate today = LocalDate.now(Constants.TIME_ZONE);
+		Path file = Paths.get(Constants.METRICS_DIR, "metrics_" + today + ".csv");
+		if (!today.equals(lastDay)) {						// Started, or it's a new day
+			Files.createDirectories(file.getParent());
+			deleteOld(today.minusDays(Constants.METRICS_KEEP_DAYS));
+			lastDay = today;
+		}
+		if (!Files.exists(file)) {
+			Files.write(file, Collections.singletonList(HEADER), StandardCharsets.UTF_8);
+		}
+		Files.write(file, Collections.singletonList(line.toString()), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+	} // end writeLine
+
+	/**
+	 * @param before - delete the files from before this day
+	 */
+	private static void deleteOld(LocalDate before) throws IOException {
+		String oldest = "metrics_" + before + ".csv";		// yyyy-MM-dd sorts by date
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(Constants.METRICS_DIR), "metrics_*.csv")) {
+			for (Path f : files) {
+				if (f.getFileName().toString().compareTo(oldest) < 0) {
+					Files.delete(f);
+				}
+			}
+		}
+	}
+
+	private static Map<Integer, Long> swCodes() {
+		Map<Integer, Long> codes = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> e : swCodes.entrySet()) {
+			codes.put(e.getKey(), e.getValue().get());
+		}
+		return codes;
+	}
+
+	/**
+	 * @return - "6300=2 6A81=1". Spaces, not commas, so it's one CSV field
+	 */
+	private static String formatSwCodes(Map<Integer, Long> codes) {
+		StringBuilder s = new StringBuilder();
+		for (Map.Entry<Integer, Long> e : codes.entrySet()) {
+			if (s.length() > 0) {
+				s.append(' ');
+			}
+			s.append(Integer.toHexString(e.getKey()).toUpperCase()).append('=').append(e.getValue());
+		}
+		return s.toString();
+	}
+
+} // end class Metrics
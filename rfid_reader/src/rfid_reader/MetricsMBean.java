@@ -0,0 +1,25 @@
+/**
+ * Name:
+ * 		MetricsMBean - what JMX sees of the kiosk's counters (see Metrics)
+ */
+
+package rfid_reader;
+
+public interface MetricsMBean {
+
+	long getUnknownTags();
+
+	long getInvalidTimeSpans();
+
+	long getCardErrors();
+
+	long getDuplicateTaps();
+
+	long getSwErrors();
+
+	/**
+	 * @return - "<SW1+SW2 hex>=<count> ..." for every status word a read failed with
+	 */
+	String getSwCodes();
+
+} // end interface MetricsMBean
@@ -0,0 +1,150 @@
+/**
+ * Name:
+ * 		PcscTagReader - TagReader for a real card reader (ACS ACR122U) via javax.smartcardio
+ *
+ * Description:
+ * 		This is the card I/O that used to be in RFIDreader.run: wait for a card, connect, send the
+ * 		Get Data command for the UID, disconnect, wait for the card to go away.
+ * 		See RFIDreader's header for the smartcard.io terms and the SW1/SW2 cheat sheet.
+ */
+
+package rfid_reader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+public class PcscTagReader implements TagReader {
+
+	// Command to get data from the card on the reader (the card UID)
+	private static final byte[] GET_UID_COMMAND = new byte[] { (byte) 0xFF, (byte) ISO7816.INS_GET_DATA, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
+	private static final int MAX_RESPONSE_BYTES = 258;		// Most a short APDU response can be (256 data + SW1 SW2)
+
+	private final CardTerminal terminal;
+	// Reused for every card so reading a tag doesn't allocate (see readUid)
+	private final ByteBuffer command = ByteBuffer.wrap(GET_UID_COMMAND);
+	private final ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_BYTES);
+	private long present;									// System.nanoTime() the current card showed up (see Metrics.CARD_READ)
+
+	public PcscTagReader(CardTerminal terminal) {
+		this.terminal = terminal;
+	}
+
+	/**
+	 * Find all of our card readers (ACR122s). PC/SC also lists other "readers" on the PC
+	 * like TPM drivers and the like so filter those out.
+	 *
+	 * @return	the ACR122 readers. Empty if there are none (or PC/SC isn't available)
+	 */
+	public static List<TagReader> findReaders() {
+
+		List<TagReader> readers = new ArrayList<TagReader>();
+		try {
+		    CardTerminals terminals = TerminalFactory.getDefault().terminals();
+		    List<CardTerminal> all = terminals.list();
+		    Log.debug("RFID readers detected: {}", all);
+		    for (CardTerminal ct : all) {
+		    	if (ct.getName().startsWith(Constants.READER_NAME_PREFIX)) {
+		    		readers.add(new PcscTagReader(ct));
+		    	}
+		    }
+		} catch (Exception e) {
+			System.err.println("ERROR: cannot list card readers: " + e.toString());
+			Log.error("Cannot list card readers: {}", e);
+		}
+		return readers;
+
+	} // end findReaders
+
+	public String getName() {
+		return terminal.getName();
+	}
+
+	public int readTag(TagUid uid) throws CardException {
+
+		Card card = waitForCard();
+		try {
+			return readUid(card.getBasicChannel(), command, response, uid);	// Get Data command returns the card UID
+		} finally {
+			Metrics.CARD_READ.record(System.nanoTime() - present);
+			card.disconnect(false);						// Done with this card channel
+		}
+
+	} // end readTag
+
+	public void waitForTagRemoved() throws CardException {
+		terminal.waitForCardAbsent(0);
+	}
+
+	/**
+	 * Block until we get a card insertion event from our terminal
+	 *
+	 * @return				Connects to the card on the reader and returns the resulting Card object
+	 */
+	private Card waitForCard() {
+
+		while (true) {
+			try {
+
+				terminal.waitForCardPresent(0);		// Block forever waiting for state change - no timeout
+				present = System.nanoTime();
+				return terminal.connect("*"); 		// Connect via any available protocol (e.g. half or full duplex)
+			} catch (Exception e) {
+
+				// Classmate PC was so slow we constantly get javax.smartcardio.CardNotPresentException: card not present
+				// PCSCException: SCARD_W_REMOVED_CARD
+				// It's clear to the user when his card his read so we'll just surpress these (to the log)
+				Log.debug("Unexpected error in card reader loop", e);
+				// If reader was unplugged we get caught in an infinite loop...
+				// Just delay so we aren't compute bound
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+
+				}
+			}
+		}
+
+	} // end waitForCard
+
+	/**
+	 * Send the Get Data command and put the card's UID in uid. The command and response
+	 * buffers are reused for every card, and so is uid, so this doesn't allocate
+	 * (unlike the CommandAPDU/ResponseAPDU version of transmit)
+	 *
+	 * @param channel	- channel to the card on the reader
+	 * @param command	- GET_UID_COMMAND
+	 * @param response	- at least MAX_RESPONSE_BYTES long
+	 * @param uid		- set to the hex UID if the read succeeded
+	 * @return			- SW1+SW2 status word. ISO7816.SW_NO_ERROR if we have a UID
+	 * @throws CardException
+	 */
+	static int readUid(CardChannel channel, ByteBuffer command, ByteBuffer response, TagUid uid) throws CardException {
+
+		command.rewind();
+		response.clear();
+		int n = channel.transmit(command, response);		// Response data followed by SW1 SW2
+		if (n < 2) {
+			throw new CardException("Response from card is too short: " + n + " bytes");
+		}
+
+		byte[] r = response.array();
+		int sw = ((r[n - 2] & 0xFF) << 8) | (r[n - 1] & 0xFF);
+		if (Log.isDebugEnabled()) {
+			Log.debug("Response: {} bytes, SW={}", n, Integer.toHexString(sw));
+		}
+		if (sw == ISO7816.SW_NO_ERROR) {
+			uid.set(r, 0, n - 2);
+		}
+		return sw;
+
+	} // end readUid
+
+} // end class PcscTagReader
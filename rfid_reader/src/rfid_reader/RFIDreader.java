@@ -72,108 +72,107 @@
  *      as the stop date. 
  *      Also, only one current.csv exists at a time. In order to preserve historical data, the 
  *      current current.csv is renamed to current_<date>.csv
+ *      If the kiosk is running, --report asks it for the report (see ReportServer) rather than
+ *      opening the database a second time.
  *      We get the best of both worlds this way. No weird reliance on the internet/google for attendance
  *      and lazy sung   
  */
 
 package rfid_reader;
  
+import java.io.IOException;
 import java.lang.System;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.math.BigInteger;
-import javax.smartcardio.*;
+import javax.smartcardio.CardException;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
  
 
 
 public class RFIDreader implements Runnable {
 	private static Database db;
+	private static ScanPipeline pipeline;			// Scans are queued here and committed by a writer thread
+	private static Constants.CommitDurability durability = Constants.CommitDurability.GROUP;
+	private static long batch_delay_ms = Constants.SCAN_BATCH_DELAY_MS;
+	private static Constants.DatabaseProfile profile = null;	// --profile: how JE is tuned. null for kiosk, or report when read only
 	private static Integer count = 0; 
+	private static TapDebouncer taps = new TapDebouncer(Constants.TAP_DEBOUNCE_MS, Constants.TAP_DEBOUNCE_CAPACITY);
 	
-
+	private static int simulated_readers = 0;		// --simulate: pretend readers replaying the roster's tags instead of the real ones
+	private static double sim_rate = 0;				// taps per second per simulated reader. 0 = as fast as we can
+	private static double sim_latency_ms = 0;		// simulated tap and remove latency
+	private static double sim_errors = 0;			// fraction of simulated taps that fail
+	private static Long start_time = null;			// --date: epoch millis to start the clock at. null for now
+	private static double clock_speed = 0;			// --sim-speed: how much faster than real time the clock runs. 0 = normal/fixed
+	
+	private final TagReader reader;					// The reader this instance (thread) scans
+	
+	/**
+	 * @param reader - card reader to scan. Each reader gets its own thread so one slow
+	 * 				   card removal on one reader doesn't hold up the others
+	 */
+	public RFIDreader(TagReader reader) {
+		this.reader = reader;
+	}
 	
 	public void run() {
 
-		Card card = null;
-		CardChannel channel = null;		
-		// Command to get data from the card on the reader
-		CommandAPDU command = new CommandAPDU(new byte[] { (byte) 0xFF, (byte) ISO7816.INS_GET_DATA, (byte) 0x00, (byte) 0x00, (byte) 0x00 });
+		TagUid uid = new TagUid();			// Reused for every card so reading a tag doesn't allocate
 
 	    try {
 	        
- 
-	    	TerminalFactory factory = TerminalFactory.getDefault();
-		    CardTerminals terminals = factory.terminals();
-		    CardTerminal acr122 = null; 
-		    if (terminals.list().isEmpty()) { 
-	            System.err.println("No readers found. Connect a reader and try again."); 
-	            System.exit(1); 
-	        } else {
-	        	// Pjw: Todo: filter list to just all ACR122s!!!
-	        	// Right now it's finding TPM drivers and other readers in addition to ours
-	            Debug.log("RFID readers detected: " + terminals.list());
-	            acr122 = terminals.getTerminal(Constants.READER_NAME);		// This just finds the first one. TODO: Need to iterate for multi-reader support
-	            if (acr122 == null) {
-	            	System.err.println("No ACR122 reader found. Connect a reader and try again."); 
-		            System.exit(1);
-	            }
-	        }
-	
-		    //System.out.println("Place you card/tag/etc. on the reader to start"); 
-
+	    	Log.debug("Scanning for cards on: {}", reader.getName());
 		    
-	        while (  (card = waitForCard(acr122)) != null ) {			// loop forever scanning for user input
+	        while (true) {									// loop forever scanning for user input
 	        	
 	        	try {
 		        	
-					channel = card.getBasicChannel();
-									
-					ResponseAPDU response = channel.transmit(command);	// Get Data command returns the card UID
-					Debug.log("Response: " + response.toString());
+					int sw = reader.readTag(uid);			// Get Data command returns the card UID
+					if (sw == TagReader.NO_MORE_TAGS) {
+						break;
+					}
 					   
 					//if (response.getSW1() == 0x63 && response.getSW2() == 0x00)  System.out.println("Failed");
-					if (response.getSW() != ISO7816.SW_NO_ERROR) {
-						System.err.println("ERROR: Failed to read card. Error codes SW1+SW2: " + response.toString());
+					if (sw != ISO7816.SW_NO_ERROR) {
+						Metrics.swError(sw);
+						System.err.println("ERROR: Failed to read card. Error codes SW1+SW2: " + Integer.toHexString(sw).toUpperCase());
 						System.err.println("Try again. If this error keeps happening, please tell a mentor!");
 					
 					} else {
-						String UID = bin2hex(response.getData());
-						Debug.log("RFID UID: " + UID);
+						Log.debug("RFID UID: {}", uid);
 						
-						write_user(UID, Constants.TagType.RFID);		
+						write_user(uid);		
 					
 					}
+	        	} catch (InterruptedException e) {
+	        		throw e;
 	        	} catch (Exception e) {
+	        		Metrics.cardError();
 	        		System.err.println("ERROR: problem processing card:");
 	        		System.err.println(e.getMessage());
 	        		if (Debug.isEnabled()) {
 	        			e.printStackTrace();
 	        		}
 	        		System.err.println("Please try again. If the problem continues, please tell a mentor.");        		        		
-	        	} finally {
-	        		try {
-	        			//card.endExclusive();
-	        			card.disconnect(false);						// Done with this card channel
-	        			acr122.waitForCardAbsent(0);
-	        		} catch (Exception e ) {
-	        			System.err.println("ERROR: error releasing exclusive lock on the card:");
-	        			System.err.println(e.getMessage());
-	        			System.err.println(e.getCause());
-	        			if (Debug.isEnabled()) {
-	        				e.printStackTrace();
-	        			}
-	        		}
-	        		card = null; 
 	        	}
-
-	        	if (Debug.isEnabled()) {
-					db.dumpDB();
+	        	
+	        	try {
+	        		reader.waitForTagRemoved();
+	        	} catch (CardException e ) {
+	        		Metrics.cardError();
+	        		System.err.println("ERROR: error waiting for the card to be removed:");
+	        		System.err.println(e.getMessage());
+	        		System.err.println(e.getCause());
+	        		if (Debug.isEnabled()) {
+	        			e.printStackTrace();
+	        		}
 	        	}
 			
 			} // end while scan for cards on the terminal
-	        System.err.println("Yikes! Shouldn't get here unless card reader was unplugged!");
+	        System.err.println("Yikes! Shouldn't get here unless card reader " + reader.getName() + " was unplugged!");
 
 /*
   			// Comment out the entire card reader loop above and uncomment this section in order to populate
@@ -181,25 +180,92 @@ public class RFIDreader implements Runnable {
   			// TODO: Right now all this data gets added for a single day. Need a smarter simulation to populate
   			// the DB with data for multiple days... 
 	    	UserTag user = UserTags.getUser("D58BABD2");
-	    	Debug.log("User is: " + user);	
+	    	Log.debug("User is: {}", user);	
 	    	db.write(user.getUsername());
 	    	user = UserTags.getUser("B5FCACD2");
-	    	Debug.log("User is: " + user);	
+	    	Log.debug("User is: {}", user);	
 	    	db.write(user.getUsername());
 	    	user = UserTags.getUser("05FCACD2");
-	    	Debug.log("User is: " + user);	
+	    	Log.debug("User is: {}", user);	
 	    	db.write(user.getUsername());
 	    	db.reportFromDB();
 */
 	    	
+		} catch (InterruptedException e) {
+			// Shutting down
 		} catch(Exception e) {
 			System.err.println("Unknown error reading RFID: " + e.toString());
 			e.printStackTrace(System.err);
 	 	}
 
-		
+	} // end run
+	
+	
+	/**
+	 * Run a dump command typed at the kiosk (see DatabaseDump). Not under write_user's lock:
+	 * the dump's cursors are read committed, so scans carry on while it runs
+	 * 
+	 * @param line	- "!dump ..."
+	 */
+	public static void dump(String line) {
+		if (pipeline == null || !pipeline.isReady()) {
+			System.out.println("The database isn't open yet. Nothing to dump.");
+			return;
+		}
+		try {
+			new DatabaseDump(db).run(line);
+		} catch (RuntimeException e) {				// DatabaseException, or the DPL's IllegalArgumentException etc.
+			System.err.println("ERROR: cannot dump the database: " + e.getMessage());
+		}
 	}
 	
+	/**
+	 * Point write_user at a DB and scan pipeline other than the kiosk's (LoadGenerator drives
+	 * RFIDreader threads against a scratch DB)
+	 * 
+	 * @param database	- open for read/write
+	 * @param scans		- started pipeline writing to it
+	 */
+	static void useDatabase(Database database, ScanPipeline scans) {
+		db = database;
+		pipeline = scans;
+		taps = new TapDebouncer(Constants.TAP_DEBOUNCE_MS, Constants.TAP_DEBOUNCE_CAPACITY);	// Its own clock
+	}
+
+	/**
+	 * Find all of our card readers (ACR122s), or make the simulated ones for --simulate.
+	 * Exits if there are none.
+	 * 
+	 * @return	the readers. One or more
+	 */
+	private static List<TagReader> findReaders() {
+		
+		if (simulated_readers > 0) {
+			if (UserTags.size() == 0) {						// --inventory runs before main loads the tags
+				UserTags.read_user_tags(Constants.USER_RFIDTAG_MAPPING_FILENAME);
+			}
+			List<String> tags = UserTags.rfidTags();
+			if (tags.isEmpty()) {
+				System.err.println("No RFID tags in " + Constants.USER_RFIDTAG_MAPPING_FILENAME + " to simulate.");
+				System.exit(1);
+			}
+			List<TagReader> readers = new ArrayList<TagReader>();
+			for (int i = 0; i < simulated_readers; i++) {
+				readers.add(new SimulatedTagReader("Simulated reader " + i, tags, sim_rate, i)
+						.setLatency(sim_latency_ms, sim_latency_ms)
+						.setFailureRates(sim_errors / 2, sim_errors / 2));
+			}
+			return readers;
+		}
+		
+		List<TagReader> readers = PcscTagReader.findReaders();
+		if (readers.isEmpty()) {
+        	System.err.println("No ACR122 reader found. Connect a reader and try again."); 
+            System.exit(1);
+		}
+		return readers;
+		
+	} // end findReaders
 	
 	/**
 	 * Initialize the card readers and process cards
@@ -213,19 +279,56 @@ public class RFIDreader implements Runnable {
 
     	parseCommandLine(args);
     	
-    	// Initialise our DB
-    	db = new Database();
-    	db.DBinit(Constants.DATABASE_DIR, false);		/* Open the DB for read/write */
- 
+    	// Initialize tag-to-user database. Before the DB: journaled scans are looked up when they're added
+    	UserTags.read_user_tags(Constants.USER_RFIDTAG_MAPPING_FILENAME);
+    	RosterWatcher.start(Constants.USER_RFIDTAG_MAPPING_FILENAME);	// and pick up changes to it without a restart
+    	Metrics.start();								// Scan path latencies and errors, over JMX and in data/metrics
     	
+    	// Every scan is saved to the journal first, so it survives a crash or a DB that won't open
+    	ScanJournal journal = null;
+    	try {
+    		journal = new ScanJournal(Constants.SCAN_JOURNAL_FILENAME, Constants.SCAN_JOURNAL_CAPACITY);
+    	} catch (IOException e) {
+    		System.err.println("WARNING: cannot open the scan journal " + Constants.SCAN_JOURNAL_FILENAME + ": " + e.getMessage());
+    		System.err.println("Scans will only be saved once they're in the database.");
+    	}
+    	final ScanJournal scan_journal = journal;
     	
+    	// Initialise our DB. The scan writer opens it (read/write) and adds any journaled scans it
+    	// doesn't have. If it won't open we keep taking scans into the journal while it retries
+    	db = new Database();
+    	db.setClock(clock());
+    	db.setProfile(profile);
+    	pipeline = new ScanPipeline(db, durability, batch_delay_ms, journal);
+    	pipeline.start(Constants.DATABASE_DIR);
+    	ReportServer.start(db, pipeline);				// --report asks us for reports instead of opening the DB again
     	
-    	// Initialize tag-to-user database
-    	UserTags.read_user_tags(Constants.USER_RFIDTAG_MAPPING_FILENAME);
+    	// On ctrl-c, commit whatever scans are still queued and close the DB cleanly. If the writer
+    	// doesn't finish in time, leave the DB alone: closing it under an open transaction throws, and
+    	// the journal has the scans anyway
+    	Runtime.getRuntime().addShutdownHook(new Thread() {
+    		public void run() {
+    			if (pipeline.shutdown(5000)) {
+    				db.close();
+    			} else if (scan_journal != null) {
+    				System.err.println("WARNING: the scan writer didn't finish. Scans it hadn't saved are in the scan journal"
+    						+ " and will be added to the database next time.");
+    			} else {
+    				System.err.println("WARNING: the scan writer didn't finish. Scans it hadn't saved are lost.");
+    			}
+    			if (scan_journal != null) {
+    				try {
+    					scan_journal.close();
+    				} catch (IOException e) {
+    					System.err.println("WARNING: cannot close the scan journal: " + e.getMessage());
+    				}
+    			}
+    		}
+    	});
 
-    	// ZonedDateTime.now( ZoneId.of( "America/New_York" )) for a fixed timezone
+    	// Days in the DB are in Constants.TIME_ZONE. Set it to ZoneId.of( "America/New_York" ) for a fixed timezone
     	// System we're running on MUST have proper time/timezone set!!!
-    	ZonedDateTime current_time = ZonedDateTime.now();						// Format is: 2017-09-04T02:51:39.905-04:00[America/New_York]		
+    	ZonedDateTime current_time = ZonedDateTime.now(db.getClock());						// Format is: 2017-09-04T02:51:39.905-04:00[America/New_York]		
     	DateTimeFormatter formatter =
     			DateTimeFormatter.ofPattern(Constants.dateTimeFormatPattern); 	// Format is nicer YYYY-MM-DD time tz
     	System.out.println("Validate that the current time is: " + 
@@ -236,9 +339,12 @@ public class RFIDreader implements Runnable {
     	System.out.println("OR read your school ID with the bardcode reader"); 
     	System.out.println("OR type in your student ID number..."); 
     	
-    	(new Thread(new RFIDreader())).start(); // Start reading from the RFID card reader
+    	for (TagReader reader : findReaders()) {		// Start reading from each RFID card reader
+    		System.out.println("Using RFID reader: " + reader.getName());
+    		(new Thread(new RFIDreader(reader), "rfid-" + reader.getName())).start(); 
+    	}
     	Runnable barcode_reader_thread = new BardcodeReaderThread();
-    	Thread barcode_reader = new Thread(barcode_reader_thread);
+    	Thread barcode_reader = new Thread(barcode_reader_thread, "barcode-reader");
     	barcode_reader.start();					// Start reading from stdin
     	
     	
@@ -272,15 +378,95 @@ public class RFIDreader implements Runnable {
     				if (argument.contains("=")) {
         				String s[] = argument.split("=");
         				if (s.length > 1 && !s[1].isEmpty()) {
-        					Debug.setDate(s[1]);					
+        					try {
+        						start_time = Days.parseTime(s[1]);		// Parsed once, here
+        					} catch (DateTimeParseException e) {
+        						System.err.println("ERROR: Date format must be 'yyyy/mm/dd hh:mm:ss [AM|PM]'");
+        						System.exit(1);
+        					}
         				}
     				}
     			
     			} else if (argument.equals("-r") || argument.equals("--report")) {
-    				db = new Database();
-    				db.DBinit(Constants.DATABASE_DIR, true);			// Open for read-only access
-    				db.reportFromDB();
+    				if (!requestReport(ReportServer.REPORT)) {				// The running kiosk writes it if it can
+    					db = openDatabase(true);							// Otherwise open for read-only access
+    					db.reportFromDB();
+    				}
+    				System.exit(0);
+
+    			} else if (argument.equals("--delta")) {							// Only what changed since the last report
+    				if (!requestReport(ReportServer.DELTA)) {
+    					db = openDatabase(true);
+    					db.reportChangesFromDB();
+    				}
     				System.exit(0);
+
+    			} else if (argument.equals("--summary")) {						// Season totals per user
+    				if (!requestReport(ReportServer.SUMMARY)) {
+    					db = openDatabase(true);
+    					db.summaryFromDB(Constants.SUMMARY_FILENAME);
+    				}
+    				System.exit(0);
+
+    			} else if (argument.equals("--compact")) {						// Full report that replaces the deltas
+    				if (!requestReport(ReportServer.COMPACT)) {
+    					db = openDatabase(true);
+    					db.compactReport();
+    				}
+    				System.exit(0);
+
+    			} else if (argument.startsWith("--import=")) {					// Load visits exported from the Google Sheet
+    				db = openDatabase(false);							// The kiosk can't be running
+    				try {
+    					new AttendanceImport(db).load(argument.substring("--import=".length()));
+    				} catch (IOException e) {
+    					System.err.println("ERROR: cannot read " + argument.substring("--import=".length()) + ": " + e.getMessage());
+    					db.close();
+    					System.exit(1);
+    				}
+    				db.close();
+    				System.exit(0);
+
+    			} else if (argument.startsWith("--durability=")) {				// --durability=sync|nosync|group
+    				String mode = argument.substring("--durability=".length());
+    				if (mode.equals("sync")) {
+    					durability = Constants.CommitDurability.SYNC;
+    				} else if (mode.equals("nosync")) {
+    					durability = Constants.CommitDurability.WRITE_NO_SYNC;
+    				} else if (mode.equals("group")) {
+    					durability = Constants.CommitDurability.GROUP;
+    				} else {
+    					Usage();
+    				}
+    				
+    			} else if (argument.startsWith("--profile=")) {					// --profile=kiosk|report|default. Before --report etc.
+    				profile = parseProfile(argument);
+    				
+    			} else if (argument.startsWith("--batch-delay=")) {			// --batch-delay=<milliseconds>, group commit only
+    				try {
+    					batch_delay_ms = Long.parseLong(argument.substring("--batch-delay=".length()));
+    				} catch (NumberFormatException e) {
+    					Usage();
+    				}
+    				
+    			} else if (argument.equals("--simulate") || argument.startsWith("--simulate=")) {	// --simulate[=<readers>]
+    				simulated_readers = 1;
+    				if (argument.contains("=")) {
+    					simulated_readers = parseNumber(argument).intValue();
+    				}
+    				
+    			} else if (argument.startsWith("--sim-rate=")) {				// taps per second per simulated reader
+    				sim_rate = parseNumber(argument).doubleValue();
+    				
+    			} else if (argument.startsWith("--sim-latency=")) {			// milliseconds a simulated tag takes to read and to remove
+    				sim_latency_ms = parseNumber(argument).doubleValue();
+    				
+    			} else if (argument.startsWith("--sim-errors=")) {			// fraction of simulated taps that fail (0..1)
+    				sim_errors = parseNumber(argument).doubleValue();
+    				
+    			} else if (argument.startsWith("--sim-speed=")) {			// clock runs this many times faster than real time
+    				clock_speed = parseNumber(argument).doubleValue();
+    				
     			} else {
     				Usage();
     				
@@ -291,137 +477,155 @@ public class RFIDreader implements Runnable {
 		
 	} // end parseCommandLine
 
+	/**
+	 * Ask the running kiosk to write a report (see ReportServer)
+	 * 
+	 * @param command	- ReportServer.REPORT, DELTA, COMPACT or SUMMARY
+	 * @return			- true if the kiosk took care of it. false to open the database and write it here
+	 */
+	private static boolean requestReport(String command) {
+		try {
+			return ReportServer.request(command);
+		} catch (IOException e) {
+			System.err.println("WARNING: cannot ask the kiosk for the " + command + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Open the kiosk's database for a one shot command (--report and friends). Exits if it won't open
+	 * 
+	 * @param read_only	- true for read only access
+	 * @return			- the open database
+	 */
+	private static Database openDatabase(boolean read_only) {
+		Database database = new Database();
+		database.setProfile(profile);
+		try {
+			database.DBinit(Constants.DATABASE_DIR, read_only);
+		} catch (RuntimeException e) {
+			System.exit(1);											// DBinit said why
+		}
+		return database;
+	}
+
+	/**
+	 * @param argument	- "--profile=kiosk|report|default"
+	 * @return			- the profile. Prints the usage and exits if it isn't one
+	 */
+	static Constants.DatabaseProfile parseProfile(String argument) {
+		try {
+			return Constants.DatabaseProfile.valueOf(argument.substring(argument.indexOf('=') + 1).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR: unknown database profile in " + argument);
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * @return - the clock scans are timestamped with: the system clock, fixed at --date,
+	 * 			 or running --sim-speed times faster from --date (or now)
+	 */
+	private static Clock clock() {
+		if (clock_speed > 0) {
+			Instant start = (start_time == null) ? Instant.now() : Instant.ofEpochMilli(start_time);
+			return new SimulatedClock(start, clock_speed);
+		}
+		if (start_time != null) {
+			return Clock.fixed(Instant.ofEpochMilli(start_time), Constants.TIME_ZONE);
+		}
+		return Clock.system(Constants.TIME_ZONE);
+	}
+
+	/**
+	 * @param argument	- "--name=<number>"
+	 * @return			- the number. Prints the usage and exits if it isn't one
+	 */
+	private static Double parseNumber(String argument) {
+		try {
+			double value = Double.parseDouble(argument.substring(argument.indexOf('=') + 1));
+			if (value >= 0) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+		}
+		Usage();
+		return null;
+	}
+
 
 	private static void Usage() {
-		System.out.println("Usage: rfid_reader [-i | --inventory] [-d | --debug] [--date='yyy/mm/dd hh:mm:ss [AM|PM]' ] [-r | --report]" );
+		System.out.println("Usage: rfid_reader [-i | --inventory] [-d | --debug] [--date='yyy/mm/dd hh:mm:ss [AM|PM]' ] [-r | --report] [--delta] [--compact] [--summary] [--import=<csv>]" +
+				" [--durability=sync|nosync|group] [--batch-delay=<ms>] [--profile=kiosk|report|default]" +
+				" [--simulate[=<readers>] [--sim-rate=<taps/sec>] [--sim-latency=<ms>] [--sim-errors=<fraction>]] [--sim-speed=<x>]" );
 		System.exit(0);
 	} // end Usage
 
 
 	/**
      * PJW: Make this the "inventory" process OR use the CLI opensc tool    
+     * Prints the UID of every tag read on any of the readers
      */
     public static void tagInventory() {
-		Card card = null;
-		CardChannel channel = null;		
-		// Command to get data from the card on the reader
-		CommandAPDU command = new CommandAPDU(new byte[] { (byte) 0xFF, (byte) ISO7816.INS_GET_DATA, (byte) 0x00, (byte) 0x00, (byte) 0x00 });
+    	
+    	List<Thread> threads = new ArrayList<Thread>();
+    	for (final TagReader reader : findReaders()) {
+    		System.out.println(reader.getName());			// Reader names for use with CardTerminals.getTerminal("name")
+    		Thread t = new Thread(new Runnable() {
+    			public void run() {
+    				inventory(reader);
+    			}
+    		}, "inventory-" + reader.getName());
+    		t.start();
+    		threads.add(t);
+    	}
+    	
+    	for (Thread t : threads) {
+    		try {
+    			t.join();
+    		} catch (InterruptedException e) {
+    			return;
+    		}
+    	}
+    	
+    } // end method tagInventory
+    
+    private static void inventory(TagReader reader) {
+		TagUid uid = new TagUid();
+		int sw;
 
 		try {
-	        
-		    TerminalFactory factory = TerminalFactory.getDefault();
-		    CardTerminals terminals = factory.terminals();
-		    if (terminals.list().isEmpty()) { 
-	            System.err.println("No readers found. Connect a reader and try again."); 
-	            System.exit(1); 
-	        } else {
-	            Debug.log("RFID readers detected: " + terminals.list());
-	            if (Debug.isEnabled()) { 							// Print the reader names for use with CardTerminal.getTerminal("name")
-	            	for (CardTerminal ct : terminals.list()) {
-	            		System.out.println(ct.getName());
-	            	}
-	            }
-	        }
-	
 		    
-			while (  (card = waitForCard(terminals)) != null ) {
+			while (true) {
 	        	
-	        	card.beginExclusive();							// Only our thread should process this card
-	        	try {
-	
-					channel = card.getBasicChannel();
-									
-					ResponseAPDU response = channel.transmit(command);	// Get Data command returns the card UID
-					Debug.log("Response: " + response.toString());
-					   
+				try {
+					if ((sw = reader.readTag(uid)) == TagReader.NO_MORE_TAGS) {
+						break;
+					}
 					//if (response.getSW1() == 0x63 && response.getSW2() == 0x00)  System.out.println("Failed");
-					if (response.getSW() != ISO7816.SW_NO_ERROR) {
-						System.err.println("ERROR: Failed to read card. Error codes SW1+SW2: " + response.toString());
+					if (sw != ISO7816.SW_NO_ERROR) {
+						System.err.println("ERROR: Failed to read card. Error codes SW1+SW2: " + Integer.toHexString(sw).toUpperCase());
 						System.err.println("If this keeps happening, please tell a mentor!");
 					} else {
-						System.out.println("UID: " + bin2hex(response.getData()));
+						System.out.println("UID: " + uid);
 	        		}
-	        	} finally {
-	        		card.endExclusive();
-	        		card.disconnect(false);						// Done with this card channel
-	        		card = null; 
-	        	}
+				} catch (CardException e) {
+					System.err.println("ERROR: Failed to read card: " + e.getMessage());
+				}
+				reader.waitForTagRemoved();
 			}
-			System.err.println("Yikes! Shouldn't get here!");
+			System.err.println("Yikes! Shouldn't get here unless card reader " + reader.getName() + " was unplugged!");
 	   
- 
+		} catch (InterruptedException e) {
+			// Shutting down
 		} catch(Exception e) {
 			System.err.println("Unknown error reading RFID: " + e.toString());
 			e.printStackTrace(System.err);
 	 	}
     	
-    } // end method tagInventory
-    
-	/**
-	 * Block until we get a card insertion event from any terminal
-	 * 
-	 * @param terminals		We can have multiple readers. Scan all readers for cards
-	 * @return				Connects to the card on the reader and returns the resulting Card object 
-	 * @throws CardException
-	 * 
-	 * Notes: I've never tested with multiple readers!!!
-	 */
-    private static Card waitForCard(CardTerminals terminals) {
-
-    	  while (true) { 
-    		  try {
-
-    			  terminals.waitForChange(0);		// Block forever waiting for state change - no timeout
-    			  for (CardTerminal ct : terminals.list(CardTerminals.State.CARD_INSERTION)) { 
-    				  return ct.connect("*"); 		// Connect via any available protocol (e.g. half or full duplex)
-    			  }     
-    	    	} catch (Exception e) {
-    	    		System.err.println("ERROR: Unexpected error in card reader loop: " + e.toString() );
-    	    		e.printStackTrace(System.err);
-    	    	}
-    	}
-    	
-    	
-    	} // end waitForCard
-	
-	/**
-	 * Block until we get a card insertion event from a specific terminal
-	 * 
-	 * @param ct			Scan this one cardreader
-	 * @return				Connects to the card on the reader and returns the resulting Card object 
-	 * @throws CardException
-	 */
-    private static Card waitForCard(CardTerminal ct) {
-
-    	  while (true) { 
-    		  try {
-
-    			  ct.waitForCardPresent(0);		// Block forever waiting for state change - no timeout
-    			  return ct.connect("*"); 		// Connect via any available protocol (e.g. half or full duplex)
-    	    	} catch (Exception e) {
-    	    		
-    	    		// Classmate PC was so slow we constantly get javax.smartcardio.CardNotPresentException: card not present
-    	    		// PCSCException: SCARD_W_REMOVED_CARD
-    	    		// It's clear to the user when his card his read so we'll just surpress these
-    	    		if (Debug.isEnabled()) {
-        	    		System.err.println("ERROR: Unexpected error in card reader loop: " + e.toString() );
-        	    		e.printStackTrace(System.err);
-    	    			
-    	    		}
-    	    		// If reader was unplugged we get caught in an infinite loop...
-    	    		// Just delay so we aren't compute bound
-    	    		try {
-    	    			Thread.sleep(1000);
-    	    		} catch (InterruptedException ie) {
-    	    			
-    	    		}
-    	    	}
-    	}
-    	
-    	
-    	} // end waitForCard
+    } // end method inventory
 
-	
 	/**
 	 * Returns the hex-formatted version of the byte inputs. 
 	 * Used to format the data returned from the card reader
@@ -431,29 +635,66 @@ public class RFIDreader implements Runnable {
 	 * @return		hex-formatted string
 	 */
 	static String bin2hex(byte[] data) {
-	    return String.format("%0" + (data.length * 2) + "X", new BigInteger(1,data));
+		char[] hex = new char[data.length * 2];
+		TagUid.encode(data, 0, data.length, hex);
+	    return new String(hex);
 	}
+	
 
 	/*
 	 *   Given a user's ID and type (either RFID or barcode), write to the DB
 	 *   Synchonize to prevent threading issues even though I *think* the DB layer
 	 *   would protect us (it's supposed to be thread safe) but this is simple and guarantees 
 	 *   single writer at a time for the DB...
+	 *   The DB write itself now happens on the scan pipeline's writer thread, so holding
+	 *   this lock no longer means waiting on the disk. 
+	 */
+	public static void write_user(String uid, Constants.TagType type) {
+		long scanned = System.nanoTime();				// Before we wait for the lock, so latency includes it
+		UserTag user = UserTags.getUser(uid, type);
+		Metrics.USER_LOOKUP.record(System.nanoTime() - scanned);
+		write_user(user, uid, type, scanned);
+	}
+
+	/*
+	 *   Same as above for an RFID tag read straight from the card. Known tags are looked up
+	 *   without ever making a String of the UID. 
 	 */
-	public synchronized static void write_user(String uid, Constants.TagType type) {
+	public static void write_user(TagUid uid) {
+		long scanned = System.nanoTime();
+		UserTag user = UserTags.getUser(uid);
+		Metrics.USER_LOOKUP.record(System.nanoTime() - scanned);
+		write_user(user, uid, Constants.TagType.RFID, scanned);
+	}
+	
+	private synchronized static void write_user(UserTag user, CharSequence uid, Constants.TagType type, long scanned) {
 		String tagtype_name = (type == Constants.TagType.RFID) ? "RFID tag" : "Student ID";
 		Constants.LoginType login_type; 
+		long now = db.getClock().millis();
 		
-		
-		UserTag user = UserTags.getUser(uid, type); 
-		
-		if (user != null) {
-			Debug.log("User is: " + user);
-			Debug.log("Scanning in via a " + tagtype_name);
+		if (user != null && taps.isRepeat(user.getUsername(), now)) {
+			Metrics.duplicateTap();						// Tapped twice, or the tag's still on the reader
+			Log.debug("User is: {}. Repeat {} within {}ms. Ignored", user, tagtype_name, Constants.TAP_DEBOUNCE_MS);
+			System.out.println("Got it already, " + user.getUsername() + ". Taps within "
+					+ (Constants.TAP_DEBOUNCE_MS / 1000) + " seconds of each other count once.");
+		} else if (user != null) {
 			count++;
-			Debug.log("Users processed thus far: " + count);
+			Log.debug("User is: {}. Scanning in via a {}. Users processed thus far: {}", user, tagtype_name, count);
 
-			login_type = db.write(user.getUsername());	// Add this user's scan in or out to the DB
+			try {
+				login_type = pipeline.scan(user.getUsername(), type, uid, scanned);	// Add this user's scan in or out to the DB
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (login_type == null) {					// Before their sign in: the clock went back. The timelog has said so
+				Log.warn("Scan by {} is before their sign in. Not counted", user.getUsername());
+				return;
+			}
+			if (login_type == Constants.LoginType.LOGIN || login_type == Constants.LoginType.LOGOUT
+					|| login_type == Constants.LoginType.SAVED) {
+				taps.tapped(user.getUsername(), now);	// Counted. Only now is another tap a repeat
+			}
 			
 			switch (login_type) {						// and print a customized message
 			case LOGIN:
@@ -465,16 +706,23 @@ public class RFIDreader implements Runnable {
 				break;
 			
 			case INVALID_TIME_SPAN:
+				Metrics.invalidTimeSpan();
 				System.err.println("ERROR: login/outs cannot span multiple days. Login again. ");
 				break;
 			
+			case SAVED:									// The DB isn't open. Sign in or out is decided when it is
+				System.out.println("Got it: " + user.getUsername() + ". Your scan is saved and will be counted as soon as the database is back.");
+				break;
+			
 			default:									// Should never get here!
 				System.err.println("ERROR: unknown login type. Please report this to a mentor.");
 				break;	
 			} // end switch
 		} else {										// Unknown tag. Your RFID tag or Your Student ID....
+			Metrics.unknownTag();
 			System.out.println("Hey!!! Your " + tagtype_name + ": " + uid + " is not in the database. Please see a mentor! Thanks.");
 		}
+		Metrics.GREETING.record(System.nanoTime() - scanned);
 
 	}
 	
@@ -0,0 +1,267 @@
+/**
+ * Name:
+ * 		ReportServer - the running kiosk writes the reports, so --report doesn't have to open the database
+ *
+ * Description:
+ * 		--report (and --delta, --compact, --summary) used to open the database read only in a second JVM.
+ * 		Every open runs JE's recovery over the log the kiosk has written since its last checkpoint, which
+ * 		gets slow, and a read only environment only sees what the kiosk had written when it opened.
+ *
+ * 		Now the kiosk writes them itself, from the database it already has open. --report asks it with a
+ * 		trigger file in ./sync:
+ * 			report.request	- the client writes the command (report, delta, compact or summary) and a
+ * 							  request id on the next line
+ * 			report.running	- the kiosk takes the request by renaming it to this. The rename is atomic, so
+ * 							  the kiosk taking it and the client giving up on it can't both happen
+ * 			report.done		- the kiosk's answer: the request id, then "OK <what it did>" or "ERROR <why>"
+ * 		If nothing takes the request within REPORT_PICKUP_MS (the kiosk isn't running, or its database
+ * 		isn't open) the client takes it back and opens the database itself, like it always has.
+ *
+ * 		The report runs on this thread, at low priority, with the same read committed cursors as a
+ * 		read only report. Scans aren't held up: they're classified against the attendance cache and the
+ * 		scan writer keeps committing. JE doesn't have snapshots, so each row is a committed user day as of
+ * 		when the report got to it. A scan committed during the report may or may not be in it, but it's
+ * 		never half in. The next report (or --delta, which goes by change number) picks it up.
+ *
+ * 		One request at a time. A client holds an exclusive lock on report.lock from writing its request
+ * 		until it has read the answer (or taken the request back), so a second --report while one is
+ * 		running waits its turn instead of overwriting the request or reading the other one's answer.
+ * 		A client that gives up waiting lets go of the lock while the kiosk is still working on its
+ * 		request, so the answer that shows up next may not be for the next client. That's what the
+ * 		request id is for: a client only takes an answer with its own.
+ */
+
+package rfid_reader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class ReportServer implements Runnable {
+
+	public static final String REPORT = "report";
+	public static final String DELTA = "delta";
+	public static final String COMPACT = "compact";
+	public static final String SUMMARY = "summary";
+
+	private static final Path REQUEST = Paths.get(Constants.REPORT_REQUEST_FILENAME);
+	private static final Path RUNNING = Paths.get(Constants.REPORT_RUNNING_FILENAME);
+	private static final Path DONE = Paths.get(Constants.REPORT_DONE_FILENAME);
+
+	private final Database db;
+	private final ScanPipeline pipeline;
+
+	/**
+	 * @param db		- the kiosk's database
+	 * @param pipeline	- the kiosk's scan pipeline. Requests are left alone until it has the database open
+	 */
+	public ReportServer(Database db, ScanPipeline pipeline) {
+		this.db = db;
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Start taking report requests in a background (daemon) thread
+	 *
+	 * @param db		- the kiosk's database
+	 * @param pipeline	- the kiosk's scan pipeline
+	 */
+	public static void start(Database db, ScanPipeline pipeline) {
+		Thread t = new Thread(new ReportServer(db, pipeline), "report-server");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);				// Scans first
+		t.start();
+	}
+
+	public void run() {
+
+		// A request left over from before a crash was never answered. Its client has given up
+		try {
+			Files.deleteIfExists(RUNNING);
+		} catch (IOException e) {
+			// We'll find out below
+		}
+
+		// Just look for the file every so often. A stat a second costs nothing, and unlike a
+		// WatchService it also finds a request that came in while the database wasn't open
+		while (true) {
+			try {
+				Thread.sleep(Constants.REPORT_POLL_MS);
+			} catch (InterruptedException e) {
+				return;										// Shutting down
+			}
+			if (!pipeline.isReady()) {
+				continue;									// Let the client open the database itself
+			}
+			try {
+				Files.move(REQUEST, RUNNING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				continue;									// Nothing asked for
+			} catch (IOException e) {
+				continue;									// The client is still writing it, or took it back
+			}
+			serve();
+		}
+
+	} // end run
+
+	/**
+	 * Run the request in report.running and answer it in report.done
+	 */
+	private void serve() {
+
+		String answer;
+		String id = "";
+		try {
+			List<String> lines = Files.readAllLines(RUNNING, StandardCharsets.UTF_8);
+			String command = lines.isEmpty() ? "" : lines.get(0).trim();
+			id = (lines.size() < 2) ? "" : lines.get(1).trim();
+			long start = System.nanoTime();
+			answer = "OK " + report(command) + String.format(" (%.1fs)", (System.nanoTime() - start) / 1e9);
+		} catch (Exception e) {								// IOException, DatabaseException, a bad command
+			answer = "ERROR " + e.getMessage();
+			Log.error("Report request failed: {}", e);
+		}
+
+		try {
+			Path tmp = Paths.get(Constants.REPORT_DONE_FILENAME + ".tmp");
+			Files.write(tmp, Arrays.asList(id, answer), StandardCharsets.UTF_8);
+			Files.move(tmp, DONE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(RUNNING);
+		} catch (IOException e) {
+			System.err.println("ERROR: cannot answer report request: " + e.getMessage());
+		}
+
+	} // end serve
+
+	/**
+	 * @param command	- report, delta, compact or summary
+	 * @return			- what was written
+	 * @throws IOException
+	 * @throws IllegalArgumentException - not a command we know
+	 */
+	private String report(String command) throws IOException {
+
+		ReportWriter writer = new ReportWriter(db);
+		if (command.equals(REPORT)) {
+			writer.write(Paths.get(Constants.REPORT_FILENAME));
+			return "Report written to " + Constants.REPORT_FILENAME;
+		} else if (command.equals(DELTA)) {
+			writer.writeDelta();
+			return "Incremental report written";
+		} else if (command.equals(COMPACT)) {
+			writer.compact();
+			return "Full report written to " + Constants.REPORT_FILENAME;
+		} else if (command.equals(SUMMARY)) {
+			writer.writeSummary(Paths.get(Constants.SUMMARY_FILENAME));
+			return "Summary written to " + Constants.SUMMARY_FILENAME;
+		}
+		throw new IllegalArgumentException("unknown report request '" + command + "'");
+
+	} // end report
+
+	/**
+	 * Ask the running kiosk for a report and wait for it
+	 *
+	 * @param command	- report, delta, compact or summary
+	 * @return			- true if the kiosk wrote it (or tried to and said why it couldn't). false if
+	 * 					  the kiosk didn't take the request and the caller should open the database itself
+	 * @throws IOException - can't write the request
+	 */
+	public static boolean request(String command) throws IOException {
+
+		Files.createDirectories(REQUEST.toAbsolutePath().getParent());
+		try (FileChannel channel = FileChannel.open(Paths.get(Constants.REPORT_LOCK_FILENAME),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = channel.lock();					// Waits for any other --report to finish
+			try {
+				return exchange(command);
+			} finally {
+				lock.release();
+			}
+		}
+
+	} // end request
+
+	/**
+	 * Write the request and wait for the answer. The caller holds the lock
+	 */
+	private static boolean exchange(String command) throws IOException {
+
+		Files.deleteIfExists(DONE);							// An old answer isn't ours
+		String id = UUID.randomUUID().toString();
+		Path tmp = Paths.get(Constants.REPORT_REQUEST_FILENAME + ".tmp");
+		Files.write(tmp, Arrays.asList(command, id), StandardCharsets.UTF_8);
+		Files.move(tmp, REQUEST, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		long pickup = System.currentTimeMillis() + Constants.REPORT_PICKUP_MS;
+		while (Files.exists(REQUEST) && System.currentTimeMillis() < pickup) {
+			sleep();
+		}
+		try {
+			Files.delete(REQUEST);
+			return false;									// Took it back. The kiosk isn't serving reports
+		} catch (NoSuchFileException e) {
+			// The kiosk has it
+		}
+
+		System.out.println("The kiosk is writing the " + command + ". Waiting for it...");
+		long timeout = System.currentTimeMillis() + Constants.REPORT_WAIT_MS;
+		String answer;
+		while ((answer = answer(id)) == null) {
+			if (System.currentTimeMillis() > timeout) {
+				System.err.println("ERROR: the kiosk took the " + command + " request but hasn't finished it after "
+						+ TimeUnit.MILLISECONDS.toMinutes(Constants.REPORT_WAIT_MS) + " minutes");
+				return true;
+			}
+			sleep();
+		}
+		Files.deleteIfExists(DONE);
+		if (answer.startsWith("OK ")) {
+			System.out.println(answer.substring("OK ".length()));
+		} else {
+			System.err.println(answer);
+		}
+		return true;
+
+	} // end exchange
+
+	/**
+	 * @param id	- our request id
+	 * @return		- the kiosk's answer to our request, or null if there isn't one yet. An answer to a
+	 * 				  request someone gave up on is left for the kiosk to replace with ours
+	 * @throws IOException
+	 */
+	private static String answer(String id) throws IOException {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(DONE, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (lines.size() < 2 || !lines.get(0).equals(id)) {
+			return null;
+		}
+		return String.join(System.lineSeparator(), lines.subList(1, lines.size())).trim();
+	}
+
+	private static void sleep() {
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+} // end class ReportServer
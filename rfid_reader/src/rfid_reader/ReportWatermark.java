@@ -0,0 +1,96 @@
+/**
+ * Name:
+ * 		ReportWatermark - how far the reports in ./sync go
+ *
+ * Description:
+ * 		The incremental report (--delta) only writes records that changed since the last report.
+ * 		"Since" is the change sequence number (DatabaseUserDay.seq) of the last record exported, plus
+ * 		the latest day exported for humans reading the file.
+ *
+ * 		This lives in a small properties file next to the reports rather than in the JE environment:
+ * 		the report runs in its own JVM with the database open read-only (the kiosk has it open
+ * 		read/write), so it can't write to the environment. It also belongs with the reports - delete
+ * 		./sync and the next --delta starts over with a full report.
+ *
+ * 		Saved with a write to a temp file and a rename, so a crash leaves the old watermark or the new one.
+ */
+
+package rfid_reader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+
+public class ReportWatermark {
+
+	private final long seq;				// Last change sequence number exported
+	private final Integer day;			// Latest day exported (epoch day). null if none. "yyyy/MM/dd" in the file
+
+	public ReportWatermark(long seq, Integer day) {
+		this.seq = seq;
+		this.day = day;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public Integer getDay() {
+		return day;
+	}
+
+	/**
+	 * @param filename	- watermark file
+	 * @return			- the saved watermark or null if there isn't one (never reported, or ./sync was cleaned out)
+	 * @throws IOException
+	 */
+	public static ReportWatermark load(String filename) throws IOException {
+
+		Properties p = new Properties();
+		try (InputStream in = Files.newInputStream(Paths.get(filename))) {
+			p.load(in);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			String day = p.getProperty("day");
+			return new ReportWatermark(Long.parseLong(p.getProperty("seq")), (day == null) ? null : Days.parse(day));
+		} catch (NumberFormatException | DateTimeParseException e) {
+			System.err.println("WARNING: " + filename + " is corrupt. Ignoring it.");
+			return null;
+		}
+
+	} // end load
+
+	/**
+	 * @param filename - watermark file. Replaced
+	 * @throws IOException
+	 */
+	public void save(String filename) throws IOException {
+
+		Properties p = new Properties();
+		p.setProperty("seq", Long.toString(seq));
+		if (day != null) {
+			p.setProperty("day", Days.format(day));
+		}
+		Path path = Paths.get(filename);
+		Path tmp = Paths.get(filename + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			p.store(out, "Last change exported to the attendance reports. Delete to force a full report");
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	} // end save
+
+	public String toString() {
+		return "change " + seq + " (" + ((day == null) ? null : Days.format(day)) + ")";
+	}
+
+} // end class ReportWatermark
@@ -0,0 +1,312 @@
+/**
+ * Name:
+ * 		ReportWriter - writes the attendance report (./sync/current.csv) from the database
+ *
+ * Description:
+ * 		The scheduled --report rewrites the whole report every time, so it has to stay cheap as
+ * 		the seasons pile up. The report is streamed:
+ * 			- records are read with read-committed cursors that evict each record from the JE cache
+ * 			  once it's read (see Database.getUserDays), so memory doesn't grow with history
+ * 			- rows go through a CsvChannelWriter (big byte buffer + FileChannel, no per-row Strings)
+ * 			- on a PC with several cores the days are split into contiguous ranges that are written in
+ * 			  parallel, each to its own part file, then the parts are appended to the report in day
+ * 			  order (FileChannel.transferTo) so the output is the same as a single pass. The part writers
+ * 			  run at the lowest priority, like ReportServer's thread, so a report never gets ahead of scans
+ * 			  on the kiosk PC
+ *
+ * 		Columns: Date, Name, Checkins, Total Time - sorted by day then name, same as it's always been.
+ *
+ * 		Incremental reports (--delta) write only the records that changed since the last report, in the
+ * 		order they changed, to ./sync/delta_<change>.csv. A later row for the same Date and Name replaces an
+ * 		earlier one. --compact writes the full report and removes the deltas it covers.
+ * 		See ReportWatermark for how "since the last report" is tracked.
+ *
+ * 		The summary (--summary) is one row per user per season from the season totals (DatabaseUserSeason).
+ */
+
+package rfid_reader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.persist.EntityCursor;
+
+public class ReportWriter {
+
+	public static final String[] HEADER = new String[] {"Date", "Name", "Checkins", "Total Time"};
+	public static final String[] SUMMARY_HEADER = new String[] {"Season", "Name", "Total Time", "Checkins", "Days", "First Day", "Last Day"};
+
+	private static final int MAX_PARTITIONS = 4;
+	private static final int MIN_DAYS_PER_PARTITION = 60;		// Not worth a thread for less than a season or so
+
+	private final Database db;
+	private final int partitions;
+
+	/**
+	 * @param db - open database (read-only is fine)
+	 */
+	public ReportWriter(Database db) {
+		this(db, Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARTITIONS));
+	}
+
+	/**
+	 * @param db			- open database (read-only is fine)
+	 * @param partitions	- most day ranges to write in parallel. 1 for a single pass
+	 */
+	public ReportWriter(Database db, int partitions) {
+		this.db = db;
+		this.partitions = Math.max(1, partitions);
+	}
+
+	/**
+	 * Write the whole report
+	 *
+	 * @param path	- CSV file to write. Replaced if it exists
+	 * @throws IOException
+	 * @throws DatabaseException
+	 */
+	public void write(Path path) throws IOException, DatabaseException {
+		write(path, db.getDays());
+	}
+
+	private void write(Path path, List<Integer> days) throws IOException, DatabaseException {
+
+		int n = Math.min(partitions, days.size() / MIN_DAYS_PER_PARTITION);
+
+		try (CsvChannelWriter writer = new CsvChannelWriter(path)) {
+			writer.writeRow(HEADER);
+			if (n <= 1) {
+				writeDays(writer, null, null);
+			} else {
+				writer.flush();
+				writeParallel(writer.getChannel(), path, days, n);
+			}
+		}
+
+	} // end write
+
+	/**
+	 * Incremental report. Write the records that changed since the last report to a new delta file.
+	 * With nothing to start from (no watermark) this does a full report (compact) instead.
+	 *
+	 * @throws IOException
+	 * @throws DatabaseException
+	 */
+	public void writeDelta() throws IOException, DatabaseException {
+
+		ReportWatermark since = ReportWatermark.load(Constants.REPORT_WATERMARK_FILENAME);
+		if (since == null) {
+			System.out.println("No previous report to start from. Writing a full report.");
+			compact();
+			return;
+		}
+		EntityCursor<DatabaseUserDay> uds = db.getChangesSince(since.getSeq());
+
+		Path tmp = Paths.get(Constants.REPORT_DELTA_PREFIX + "tmp.csv");
+		long seq = since.getSeq();
+		Integer day = since.getDay();
+		long rows = 0;
+		try (CsvChannelWriter writer = new CsvChannelWriter(tmp)) {
+			writer.writeRow(HEADER);
+			for (DatabaseUserDay ud = uds.next(); ud != null; ud = uds.next()) {	// Oldest change first
+				writeRow(writer, ud);
+				seq = ud.getSeq();
+				if (day == null || ud.getDay() > day) {
+					day = ud.getDay();
+				}
+				rows++;
+			}
+		} finally {
+			uds.close();
+		}
+
+		if (rows == 0) {
+			Files.delete(tmp);
+			System.out.println("No changes since the last report (" + since + ")");
+			return;
+		}
+		Path delta = Paths.get(Constants.REPORT_DELTA_PREFIX + String.format("%012d", seq) + ".csv");
+		Files.move(tmp, delta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		new ReportWatermark(seq, day).save(Constants.REPORT_WATERMARK_FILENAME);
+		System.out.println(rows + " changed rows written to " + delta);
+
+	} // end writeDelta
+
+	/**
+	 * Roll everything up into a full report and start the deltas over from there
+	 *
+	 * @throws IOException
+	 * @throws DatabaseException
+	 */
+	public void compact() throws IOException, DatabaseException {
+
+		// Take the watermark before reading. Anything written while the report runs is
+		// in the next delta again - a duplicate row at worst, never a missed one
+		long seq = db.getLastChange();
+		List<Integer> days = db.getDays();
+		write(Paths.get(Constants.REPORT_FILENAME), days);
+
+		Path dir = Paths.get(Constants.REPORT_DELTA_PREFIX).toAbsolutePath().getParent();
+		int deleted = 0;
+		try (DirectoryStream<Path> deltas = Files.newDirectoryStream(dir, Constants.REPORT_DELTA_GLOB)) {
+			for (Path delta : deltas) {
+				Files.delete(delta);
+				deleted++;
+			}
+		}
+
+		new ReportWatermark(seq, days.isEmpty() ? null : days.get(days.size() - 1)).save(Constants.REPORT_WATERMARK_FILENAME);
+		System.out.println("Full report written to " + Constants.REPORT_FILENAME + ". Removed " + deleted + " delta reports.");
+
+	} // end compact
+
+	/**
+	 * Season summary: one row per user per season from the season totals
+	 *
+	 * @param path	- CSV file to write. Replaced if it exists
+	 * @throws IOException
+	 * @throws DatabaseException
+	 */
+	public void writeSummary(Path path) throws IOException, DatabaseException {
+
+		try (CsvChannelWriter writer = new CsvChannelWriter(path)) {
+			writer.writeRow(SUMMARY_HEADER);
+			for (DatabaseUserSeason us : db.getSeasonTotals(null)) {
+				writer.field(us.getSeason());
+				writer.field(us.getUsername());
+				writer.field(us.getTotalMinutes());
+				writer.field(us.getCheckins());
+				writer.field(us.getDays());
+				writer.dayField(us.getFirstDay());
+				writer.dayField(us.getLastDay());
+				writer.endRow();
+			}
+		}
+
+	} // end writeSummary
+
+	/**
+	 * Write the days in [fromDay, toDay) as CSV rows
+	 *
+	 * @param writer	- where the rows go
+	 * @param fromDay	- first day (epoch day), inclusive. null for the beginning
+	 * @param toDay		- last day (epoch day), exclusive. null for the end
+	 * @return			- number of rows written
+	 */
+	private long writeDays(CsvChannelWriter writer, Integer fromDay, Integer toDay) throws IOException, DatabaseException {
+
+		long rows = 0;
+		EntityCursor<DatabaseUserDay> uds = db.getUserDays(fromDay, toDay);
+		try {
+			for (DatabaseUserDay ud = uds.next(); ud != null; ud = uds.next()) {	// For each user on each day
+				writeRow(writer, ud);
+				rows++;
+			}
+		} finally {
+			uds.close();
+		}
+		return rows;
+
+	} // end writeDays
+
+	private static void writeRow(CsvChannelWriter writer, DatabaseUserDay ud) throws IOException {
+		DatabaseUserTimelog user_timelog = ud.getTimelog();
+		writer.dayField(ud.getDay());
+		writer.field(user_timelog.getUsername());
+		writer.field(user_timelog.getCheckins());
+		writer.field(user_timelog.getTotalTimeToday());
+		writer.endRow();
+	}
+
+	/**
+	 * Split the days into n contiguous ranges, write each range to a part file on its own thread,
+	 * then append the parts to out in order
+	 */
+	private void writeParallel(FileChannel out, Path path, List<Integer> days, int n) throws IOException, DatabaseException {
+
+		List<Path> parts = new ArrayList<Path>();
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		ExecutorService pool = Executors.newFixedThreadPool(n, new ThreadFactory() {
+			private int next = 0;
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "report-part-" + next++);
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);			// Scans first
+				return t;
+			}
+		});
+
+		try {
+			for (int i = 0; i < n; i++) {
+				final Integer fromDay = (i == 0) ? null : days.get(i * days.size() / n);
+				final Integer toDay = (i == n - 1) ? null : days.get((i + 1) * days.size() / n);
+				final Path part = Paths.get(path.toString() + ".part" + i);
+				parts.add(part);
+				results.add(pool.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						try (CsvChannelWriter writer = new CsvChannelWriter(part)) {
+							return writeDays(writer, fromDay, toDay);
+						}
+					}
+				}));
+			}
+
+			long rows = 0;
+			for (int i = 0; i < n; i++) {
+				rows += get(results.get(i));
+				try (FileChannel in = FileChannel.open(parts.get(i), StandardOpenOption.READ)) {
+					long size = in.size();
+					for (long pos = 0; pos < size; ) {
+						pos += in.transferTo(pos, size - pos, out);
+					}
+				}
+			}
+			Log.debug("Report: {} rows from {} days in {} partitions", rows, days.size(), n);
+
+		} finally {
+			pool.shutdownNow();
+			for (Path part : parts) {
+				Files.deleteIfExists(part);
+			}
+		}
+
+	} // end writeParallel
+
+	/**
+	 * Wait for a partition and pass along its exception, if it had one
+	 */
+	private static long get(Future<Long> result) throws IOException, DatabaseException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted writing the report", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof DatabaseException) {
+				throw (DatabaseException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+} // end class ReportWriter
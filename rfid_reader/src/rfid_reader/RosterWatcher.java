@@ -0,0 +1,110 @@
+/**
+ * Name:
+ * 		RosterWatcher - re-read the RFID tags file when a mentor changes it
+ *
+ * Description:
+ * 		The tags file used to be read once at startup, so adding a student meant killing the
+ * 		kiosk and restarting it (re-opening the DB and all). Now a background thread watches the
+ * 		file's directory and re-reads the file when it changes. UserTags builds the new roster off
+ * 		to the side and swaps it in all at once, so scans keep working (lock free) with the old roster
+ * 		until the new one is ready. If the new file can't be read, the old roster stays.
+ *
+ * 		Saving from Excel (or anything else) usually shows up as several events - write a temp file,
+ * 		rename, modify - so we wait until the file has been quiet for a moment before reading it.
+ */
+
+package rfid_reader;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+public class RosterWatcher implements Runnable {
+
+	private static final long QUIET_MS = 1000;		// Wait for the file to stop changing before reading it
+
+	private final String filename;
+	private final Path dir;
+	private final Path name;
+
+	public RosterWatcher(String filename) {
+		this.filename = filename;
+		Path path = Paths.get(filename).toAbsolutePath();
+		this.dir = path.getParent();
+		this.name = path.getFileName();
+	}
+
+	/**
+	 * Start watching the tags file in a background (daemon) thread
+	 *
+	 * @param filename	- tags file. Same name that was passed to UserTags.read_user_tags
+	 */
+	public static void start(String filename) {
+		Thread t = new Thread(new RosterWatcher(filename), "roster-watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void run() {
+
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+
+			dir.register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			Log.debug("Watching {} for changes", dir.resolve(name));
+
+			while (true) {
+				WatchKey key = watcher.take();				// Block until something in the directory changes
+				boolean changed = drain(key);
+
+				// Keep collecting events until the file has been quiet for a bit
+				while ((key = watcher.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null) {
+					changed |= drain(key);
+				}
+
+				if (changed) {
+					reload();
+				}
+			}
+
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Shutting down
+		} catch (IOException e) {
+			System.err.println("ERROR: cannot watch " + filename + " for changes. Restart the reader to pick up new tags.");
+			System.err.println(e.getMessage());
+		}
+
+	} // end run
+
+	/**
+	 * @return - true if any of the key's events are for our file
+	 */
+	private boolean drain(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+				changed = true;								// On overflow we don't know, so assume it changed
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	private void reload() {
+		System.out.println("RFID tags file changed. Reloading " + filename);
+		if (UserTags.read_user_tags(filename)) {
+			System.out.println("Loaded " + UserTags.size() + " users");
+		} else {
+			System.err.println("Still using the previous tags. Fix " + filename + " and save it again.");
+		}
+	}
+
+} // end class RosterWatcher
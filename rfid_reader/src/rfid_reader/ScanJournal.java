@@ -0,0 +1,302 @@
+/**
+ * Name:
+ * 		ScanJournal - every tap is saved here before anything else happens to it
+ *
+ * Description:
+ * 		A scan used to exist only in memory until the scan writer committed it to Berkeley DB. If the
+ * 		JVM died first, or the database couldn't be opened at all (DBinit used to exit), the scan was
+ * 		gone. Now every tap is appended to this journal first: a memory mapped file of fixed size
+ * 		records, so an append is a copy into memory (microseconds) with no system call. The OS writes
+ * 		the pages out on its own, so a tap survives the JVM crashing (though not the power going out
+ * 		before the OS gets to it).
+ *
+ * 		Record (RECORD_SIZE bytes):
+ * 			seq		long	- journal sequence number, 1, 2, 3, ... 0 for an empty slot
+ * 			time	long	- scan time, epoch millis
+ * 			type	byte	- Constants.TagType ordinal
+ * 			length	byte	- characters in the UID
+ * 			uid		bytes	- RFID UID (hex) or Student ID, ASCII, at most MAX_UID characters
+ * 			crc		int		- CRC32 of everything before it. A torn record doesn't match and is ignored
+ *
+ * 		The file is a ring of capacity records after a one record header. The database keeps the
+ * 		sequence number of the last scan it has (DatabaseJournalMark, written in the same transaction
+ * 		as the scans) and the scan writer tells the journal with applied() after each commit, so those
+ * 		slots can be reused. On startup anything after the database's mark is replayed (see ScanPipeline).
+ * 		A new journal file gets a random id, kept in its header and in the mark. If the file is deleted
+ * 		or replaced its sequence numbers start over, and the database's mark (from the old file) is
+ * 		ignored rather than skipping the new file's scans.
+ * 		If the database is down long enough for the ring to fill up, append() says so and the scan
+ * 		isn't journaled.
+ *
+ * 		Thread safe.
+ */
+
+package rfid_reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class ScanJournal implements Closeable {
+
+	public static final int RECORD_SIZE = 48;
+	public static final int MAX_UID = 26;					// A 10 byte RFID UID is 20 hex digits
+
+	private static final int MAGIC = 0x5343414E;			// "SCAN"
+	private static final int VERSION = 1;
+	private static final int CRC_OFFSET = RECORD_SIZE - 4;
+	private static final int UID_OFFSET = 18;
+
+	// Header (the first record): magic int, version int, capacity int, applied long, id long
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_APPLIED = 12;
+	private static final int HEADER_ID = 20;				// Random, never 0 (0 is "no journal" to Database.writeBatch)
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final int capacity;
+	private final long id;
+	private long nextSeq;									// Sequence number of the next append
+	private long applied;									// Everything up to here is in the database
+	private final byte[] record = new byte[RECORD_SIZE];	// Scratch record. Only used holding the lock
+	private final CRC32 crc = new CRC32();
+
+	/** A scan read back from the journal */
+	public static final class Entry {
+		public final long seq;
+		public final long time;
+		public final Constants.TagType type;
+		public final String uid;
+
+		Entry(long seq, long time, Constants.TagType type, String uid) {
+			this.seq = seq;
+			this.time = time;
+			this.type = type;
+			this.uid = uid;
+		}
+
+		public String toString() {
+			return seq + " " + Days.formatTime(time) + " " + type + " " + uid;
+		}
+	}
+
+	/**
+	 * Open the journal, creating it if it isn't there
+	 *
+	 * @param filename	- journal file
+	 * @param capacity	- records in a new journal. An existing one keeps its size
+	 * @throws IOException - can't create, map or read it
+	 */
+	public ScanJournal(String filename, int capacity) throws IOException {
+
+		File f = new File(filename);
+		if (f.getParentFile() != null) {
+			f.getParentFile().mkdirs();
+		}
+		boolean exists = f.length() >= RECORD_SIZE;
+		file = new RandomAccessFile(f, "rw");
+		try {
+			if (exists) {
+				file.seek(0);
+				if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+					throw new IOException(filename + " is not a scan journal");
+				}
+				capacity = file.readInt();
+			}
+			this.capacity = capacity;
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) (capacity + 1) * RECORD_SIZE);
+			if (!exists) {
+				map.putInt(0, MAGIC);
+				map.putInt(4, VERSION);
+				map.putInt(HEADER_CAPACITY, capacity);
+				map.putLong(HEADER_APPLIED, 0);
+				long newId;
+				do {
+					newId = new SecureRandom().nextLong();
+				} while (newId == 0);
+				map.putLong(HEADER_ID, newId);
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+
+		id = map.getLong(HEADER_ID);
+		applied = map.getLong(HEADER_APPLIED);
+		long last = applied;
+		for (Entry e : entries(0)) {
+			last = Math.max(last, e.seq);
+		}
+		nextSeq = last + 1;
+
+	} // end constructor
+
+	/**
+	 * Save a scan
+	 *
+	 * @param time	- scan time, epoch millis
+	 * @param type	- RFID or barcode
+	 * @param uid	- RFID UID (hex) or Student ID
+	 * @return		- the scan's sequence number, or 0 if it can't be saved (the journal is full of
+	 * 				  scans that aren't in the database yet, or the UID is too long or not ASCII)
+	 */
+	public synchronized long append(long time, Constants.TagType type, CharSequence uid) {
+
+		int n = uid.length();
+		if (n > MAX_UID || nextSeq - applied > capacity) {
+			return 0;
+		}
+		long seq = nextSeq;
+
+		putLong(record, 0, seq);
+		putLong(record, 8, time);
+		record[16] = (byte) type.ordinal();
+		record[17] = (byte) n;
+		for (int i = 0; i < MAX_UID; i++) {
+			char c = (i < n) ? uid.charAt(i) : 0;
+			if (c > 0x7F) {
+				return 0;
+			}
+			record[UID_OFFSET + i] = (byte) c;
+		}
+		crc.reset();
+		crc.update(record, 0, CRC_OFFSET);
+		putInt(record, CRC_OFFSET, (int) crc.getValue());
+
+		map.position(offset(seq));
+		map.put(record);
+		nextSeq++;
+		return seq;
+
+	} // end append
+
+	/**
+	 * Scans up to seq are in the database. Their slots can be reused, and the next scan is numbered
+	 * after seq (the database can be ahead of a journal that lost its last pages in a power cut)
+	 *
+	 * @param seq - sequence number of the last scan committed
+	 */
+	public synchronized void applied(long seq) {
+		if (seq > applied) {
+			applied = seq;
+			map.putLong(HEADER_APPLIED, seq);
+		}
+		if (seq >= nextSeq) {
+			nextSeq = seq + 1;
+		}
+	}
+
+	/**
+	 * @return - this journal file's id (see DatabaseJournalMark)
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @param seq	- the database's mark (last scan it has)
+	 * @return		- every scan in the journal after it, oldest first
+	 */
+	public synchronized List<Entry> since(long seq) {
+		return entries(seq);
+	}
+
+	/**
+	 * @return - sequence number of the last scan the journal has been told is in the database.
+	 * 			 The database's own mark is the one to trust. This is for a database that doesn't have one
+	 */
+	public synchronized long getApplied() {
+		return applied;
+	}
+
+	/**
+	 * @return - scans appended that aren't known to be in the database yet
+	 */
+	public synchronized long getPending() {
+		return nextSeq - 1 - applied;
+	}
+
+	private List<Entry> entries(long after) {
+
+		List<Entry> entries = new ArrayList<Entry>();
+		byte[] r = new byte[RECORD_SIZE];
+		CRC32 check = new CRC32();
+		Constants.TagType[] types = Constants.TagType.values();
+		for (int slot = 0; slot < capacity; slot++) {
+			map.position((slot + 1) * RECORD_SIZE);
+			map.get(r);
+			long seq = getLong(r, 0);
+			if (seq <= after) {
+				continue;										// Empty or already in the database
+			}
+			check.reset();
+			check.update(r, 0, CRC_OFFSET);
+			int n = r[17];
+			if (getInt(r, CRC_OFFSET) != (int) check.getValue() || r[16] < 0 || r[16] >= types.length || n < 0 || n > MAX_UID) {
+				System.err.println("WARNING: scan journal record " + slot + " is damaged. Skipping it");
+				continue;
+			}
+			entries.add(new Entry(seq, getLong(r, 8), types[r[16]], new String(r, UID_OFFSET, n, StandardCharsets.US_ASCII)));
+		}
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.seq, b.seq);
+			}
+		});
+		return entries;
+
+	} // end entries
+
+	private int offset(long seq) {
+		return (int) ((seq - 1) % capacity + 1) * RECORD_SIZE;
+	}
+
+	/**
+	 * Write the journal out to disk and close it
+	 */
+	public synchronized void close() throws IOException {
+		map.force();
+		file.close();
+	}
+
+	private static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; i--) {
+			b[off + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+	private static long getLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		for (int i = 3; i >= 0; i--) {
+			b[off + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+	private static int getInt(byte[] b, int off) {
+		int v = 0;
+		for (int i = 0; i < 4; i++) {
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+} // end class ScanJournal
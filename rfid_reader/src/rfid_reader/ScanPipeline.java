@@ -0,0 +1,451 @@
+/**
+ * Name:
+ * 		ScanPipeline - decouples "a student scanned" from "the scan is committed to disk"
+ *
+ * Description:
+ * 		Originally write_user did a full Berkeley DB transaction (with an fsync) before printing
+ * 		"Signing in". On the slow Classmate PC that made both the RFID and the barcode threads
+ * 		wait on the disk for every scan.
+ *
+ * 		Now a scan is classified (login or logout) against the DB's AttendanceCache of today's records
+ * 		and the greeting is printed right away. The updated record is put on a bounded queue and
+ * 		a single writer thread commits whatever has queued up in one transaction.
+ *
+ * 		Durability is configurable (see Constants.CommitDurability):
+ * 			SYNC			- commit with fsync as soon as there's anything queued
+ * 			WRITE_NO_SYNC	- commit without the fsync (safe from a JVM crash but not a power failure)
+ * 			GROUP			- wait up to the batch delay for more scans, then one fsync for all of them
+ *
+ * 		If the queue fills up (the disk has stalled badly) scanners block until the writer catches up.
+ *
+ * 		A batch that doesn't commit is tried again (backing off up to Constants.COMMIT_RETRY_MAX_MS)
+ * 		until it does. Nothing after it is written first: the cache has already counted its scans, and a
+ * 		later batch would move the database's journal mark past them, so they'd never be replayed. If
+ * 		the kiosk shuts down while it's still failing, the writer stops there and the scans that didn't
+ * 		make it are replayed from the journal the next time the database opens.
+ *
+ * 		With a ScanJournal, every scan is saved to the journal before anything else happens to it, and
+ * 		the database records how far into the journal it is in the same transaction as the scans. The
+ * 		kiosk starts the pipeline before the database is open: the writer opens it (retrying until it can),
+ * 		adds any journaled scans the database doesn't have yet (left over from a crash, or taken while it
+ * 		was opening) and only then starts classifying scans. Until then a scan is just journaled (SAVED).
+ *
+ * 		Every committed scan's scan-to-commit latency (from when the reader handed us the tag until
+ * 		its transaction committed) goes in a LatencyHistogram. See LoadGenerator.
+ */
+
+package rfid_reader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
+
+public class ScanPipeline implements Runnable {
+
+	private final Database db;
+	private final ScanJournal journal;						// null for none
+	private String dbDir = null;							// The writer opens this database before anything else. null if it's open already
+	private volatile boolean ready = false;					// Database open and the journal replayed. Scans are classified and queued
+	private final Constants.CommitDurability durability;
+	private final long batchDelayNanos;
+	private final BlockingQueue<Scan> queue;
+	private final Thread writer;
+	private volatile boolean stopping = false;
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+	private volatile long commits = 0;						// Transactions committed. Only the writer changes it
+	private long lastCheck = System.currentTimeMillis();	// Last time the writer checked the cache against the DB
+
+	public ScanPipeline(Database db, Constants.CommitDurability durability, long batchDelayMs) {
+		this(db, durability, batchDelayMs, null);
+	}
+
+	/**
+	 * @param db			- database to write. Open it first, or start(dir) opens it
+	 * @param durability	- how the writer commits
+	 * @param batchDelayMs	- group commit wait
+	 * @param journal		- every scan is saved here first. null for no journal
+	 */
+	public ScanPipeline(Database db, Constants.CommitDurability durability, long batchDelayMs, ScanJournal journal) {
+		this.db = db;
+		this.journal = journal;
+		this.durability = durability;
+		this.batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(batchDelayMs);
+		this.queue = new ArrayBlockingQueue<Scan>(Constants.SCAN_QUEUE_CAPACITY);
+		this.writer = new Thread(this, "scan-writer");
+	}
+
+	/** A queued record and when it was scanned */
+	private static final class Scan {
+		final DatabaseUserDay ud;
+		final long scannedNanos;						// System.nanoTime() when the tag was read
+		final long journalSeq;							// Its journal sequence number. 0 if it wasn't journaled
+
+		Scan(DatabaseUserDay ud, long scannedNanos, long journalSeq) {
+			this.ud = ud;
+			this.scannedNanos = scannedNanos;
+			this.journalSeq = journalSeq;
+		}
+	}
+
+	/**
+	 * Start the writer thread for a database that's already open
+	 */
+	public void start() {
+		ready = true;
+		writer.start();
+	}
+
+	/**
+	 * Start the writer thread. It opens the database (read/write), retrying until it can, and
+	 * adds the journaled scans the database doesn't have. Scans are journaled in the meantime.
+	 *
+	 * @param db_dir - database directory
+	 */
+	public void start(String db_dir) {
+		dbDir = db_dir;
+		writer.start();
+	}
+
+	/**
+	 * Record a scan for this user. Journals it, decides login vs logout from in-memory state,
+	 * queues the updated record for the writer and returns without waiting for the commit.
+	 *
+	 * @param user			- name of the user that scanned
+	 * @param type			- how they scanned
+	 * @param uid			- RFID UID (hex) or Student ID they scanned, for the journal
+	 * @param scannedNanos	- System.nanoTime() when the tag was read. Commit latency is measured from here
+	 * @return				- login, logout or invalid (invalid scans aren't written), or saved if
+	 * 						  the database isn't open yet
+	 * @throws DatabaseException
+	 * @throws InterruptedException - if interrupted while waiting for room in a full queue
+	 * @throws IllegalStateException - the database isn't open and the scan couldn't be journaled
+	 */
+	public synchronized Constants.LoginType scan(String user, Constants.TagType type, CharSequence uid, long scannedNanos)
+			throws DatabaseException, InterruptedException {
+
+		long now = db.getClock().millis();		// Timestamp for right now, epoch millis
+		long seq = (journal == null) ? 0 : journal.append(now, type, uid);
+		if (!ready) {
+			if (seq == 0) {
+				throw new IllegalStateException("The database isn't open and the scan journal can't save the scan");
+			}
+			return Constants.LoginType.SAVED;	// The writer adds it when the database opens
+		}
+		AttendanceCache cache = db.getCache();
+
+		Constants.LoginType login_type = cache.scan(user, now);
+		if (login_type == null || login_type == Constants.LoginType.INVALID_TIME_SPAN) {
+			return login_type;					// Invalid scans aren't written
+		}
+
+		queue.put(new Scan(cache.get(user), scannedNanos, seq));	// Cached records are never modified so the writer can have it
+
+		return login_type;
+
+	} // end scan
+
+	/**
+	 * Writer thread. Takes everything on the queue (waiting up to the batch delay for
+	 * more in group commit mode) and commits it as one transaction.
+	 */
+	public void run() {
+
+		List<Scan> batch = new ArrayList<Scan>();
+		List<DatabaseUserDay> records = new ArrayList<DatabaseUserDay>();
+
+		if (!ready && !open()) {
+			return;								// Shut down before the database ever opened. The scans are in the journal
+		}
+
+		while (!stopping) {
+			try {
+				// Wait for the first scan of the batch. Poll rather than take so we notice shutdown
+				// without interrupting this thread (JE invalidates the environment if a thread
+				// is interrupted while it's doing I/O)
+				Scan first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					idle();
+					continue;
+				}
+				batch.add(first);
+
+				if (durability == Constants.CommitDurability.GROUP) {
+					long deadline = System.nanoTime() + batchDelayNanos;
+					long remaining;
+					while ((remaining = deadline - System.nanoTime()) > 0) {
+						Scan scan = queue.poll(remaining, TimeUnit.NANOSECONDS);
+						if (scan == null) {
+							break;
+						}
+						batch.add(scan);
+						queue.drainTo(batch);
+					}
+				}
+				queue.drainTo(batch);			// Whatever else showed up
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			if (!writeBatch(batch, records)) {
+				return;							// Shut down while it was failing. Nothing after it can be written either
+			}
+		}
+
+		// Shutting down. Write anything left on the queue
+		queue.drainTo(batch);
+		writeBatch(batch, records);
+
+	} // end run
+
+	/**
+	 * Commit a batch of scans and clear it. If it doesn't commit, try it again until it does
+	 * (or we're shut down)
+	 *
+	 * @param batch		- scans to write, in scan order
+	 * @param records	- scratch list for the batch's records
+	 * @return			- false if we were shut down before it committed. It mustn't be followed by
+	 * 					  anything else, so its scans are replayed from the journal
+	 */
+	private boolean writeBatch(List<Scan> batch, List<DatabaseUserDay> records) {
+
+		if (batch.isEmpty()) {
+			return true;
+		}
+
+		long seq = 0;
+		for (Scan scan : batch) {
+			records.add(scan.ud);
+			seq = Math.max(seq, scan.journalSeq);
+		}
+
+		long retryMs = Constants.COMMIT_RETRY_MS;
+		boolean failed = false;
+		while (true) {
+			try {
+				db.writeBatch(records, jeDurability(), (seq > 0) ? journal.getId() : 0, seq);
+				break;
+			} catch (Exception e) {
+				if (!failed) {
+					Log.error("Could not save " + batch.size() + " scans to the database: {}", e);
+					System.err.println("ERROR: could not save " + batch.size() + " scans to the database. Trying again. Please tell a mentor!");
+					failed = true;
+				} else {
+					Log.debug("Still cannot save " + batch.size() + " scans to the database: {}", e);
+				}
+			}
+			if (!pause(retryMs)) {
+				queue.drainTo(batch);					// Nothing queued after it gets written either
+				int journaled = 0;
+				for (Scan scan : batch) {
+					if (scan.journalSeq > 0) {
+						journaled++;
+					}
+				}
+				Log.error("Shut down before {} scans were saved to the database", batch.size());
+				if (batch.size() > journaled) {
+					System.err.println("ERROR: " + (batch.size() - journaled) + " scans weren't saved anywhere and are lost!");
+				}
+				batch.clear();
+				records.clear();
+				return false;
+			}
+			retryMs = Math.min(retryMs * 2, Constants.COMMIT_RETRY_MAX_MS);
+		}
+
+		if (seq > 0) {
+			journal.applied(seq);
+		}
+		commits++;
+		long now = System.nanoTime();
+		for (Scan scan : batch) {
+			commitLatency.record(now - scan.scannedNanos);
+		}
+		Log.debug("Committed {} scans", batch.size());
+		if (failed) {
+			Log.info("Saved {} scans to the database after all", batch.size());
+			System.out.println("The database is working again. Scans are being saved.");
+		}
+		batch.clear();
+		records.clear();
+		return true;
+
+	} // end writeBatch
+
+	/**
+	 * Wait, but not past shutdown
+	 *
+	 * @param ms	- how long
+	 * @return		- false if we're shutting down (or interrupted)
+	 */
+	private boolean pause(long ms) {
+		long until = System.currentTimeMillis() + ms;
+		while (!stopping && System.currentTimeMillis() < until) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !stopping;
+	}
+
+	/**
+	 * Open the database, retrying until it opens or we're shut down, then replay the journal
+	 *
+	 * @return - true if it's open and ready for scans
+	 */
+	private boolean open() {
+
+		boolean told = false;
+		while (!stopping) {
+			try {
+				db.DBinit(dbDir, false);
+				replay();
+				if (told) {
+					System.out.println("The database is open. Scans are being counted again.");
+				}
+				return true;
+			} catch (Exception e) {
+				if (db.isOpen()) {
+					db.close();						// Opened but couldn't replay. Start over
+				}
+				if (!told) {
+					Log.error("Cannot open the database: {}", e);
+					System.err.println("ERROR: cannot open the database: " + e.getMessage());
+					System.err.println("Scans are being saved and will be counted when it opens. Retrying every "
+							+ TimeUnit.MILLISECONDS.toSeconds(Constants.DATABASE_RETRY_MS) + " seconds. Please tell a mentor!");
+					told = true;
+				} else {
+					Log.debug("Still cannot open the database: {}", e);
+				}
+			}
+			if (!pause(Constants.DATABASE_RETRY_MS)) {
+				return false;
+			}
+		}
+		return false;
+
+	} // end open
+
+	/**
+	 * Add the journaled scans the database doesn't have yet, in the order they were taken, as one
+	 * transaction. Then start classifying scans. Holds the scan lock so no new scan gets in between.
+	 *
+	 * @throws DatabaseException
+	 */
+	private synchronized void replay() throws DatabaseException {
+
+		if (journal != null) {
+			// null for a new database, or a new journal file. Then only what the journal knows isn't applied anywhere
+			Long mark = db.getJournalApplied(journal.getId());
+			if (mark != null) {
+				journal.applied(mark);					// New scans are numbered after it, even if the journal is behind
+			}
+			List<ScanJournal.Entry> entries = journal.since((mark == null) ? journal.getApplied() : mark);
+			if (!entries.isEmpty()) {
+				AttendanceCache cache = db.getCache();
+				List<DatabaseUserDay> records = new ArrayList<DatabaseUserDay>();
+				for (ScanJournal.Entry e : entries) {
+					UserTag user = UserTags.getUser(e.uid, e.type);
+					if (user == null) {
+						continue;
+					}
+					Constants.LoginType login_type = cache.scan(user.getUsername(), e.time);
+					if (login_type != null && login_type != Constants.LoginType.INVALID_TIME_SPAN) {
+						records.add(cache.get(user.getUsername()));
+					}
+				}
+				long seq = entries.get(entries.size() - 1).seq;
+				db.writeBatch(records, jeDurability(), journal.getId(), seq);
+				journal.applied(seq);
+				cache.rollover(db.getClock().millis());	// Back to today
+				System.out.println("Added " + entries.size() + " scans from the scan journal");
+			}
+		}
+		ready = true;
+
+	} // end replay
+
+	/**
+	 * Housekeeping while there's nothing to write: roll the cache over to a new day
+	 * (so the first scan of the day doesn't have to load it) and periodically check the cache
+	 * against the DB. Holds the scan lock so no scan is half done while we check.
+	 */
+	private void idle() {
+
+		synchronized (this) {
+			if (!queue.isEmpty()) {
+				return;								// A scan snuck in. Writes first
+			}
+			try {
+				AttendanceCache cache = db.getCache();
+				cache.rollover(db.getClock().millis());
+				if (System.currentTimeMillis() - lastCheck > Constants.CACHE_CHECK_INTERVAL_MS) {
+					cache.check();
+					lastCheck = System.currentTimeMillis();
+				}
+			} catch (Exception e) {
+				Log.error("Attendance cache housekeeping failed: {}", e);
+			}
+		}
+
+	} // end idle
+
+	private Durability jeDurability() {
+		switch (durability) {
+		case WRITE_NO_SYNC:
+			return Durability.COMMIT_WRITE_NO_SYNC;
+		case SYNC:
+		case GROUP:
+		default:
+			return Durability.COMMIT_SYNC;
+		}
+	}
+
+	/**
+	 * @return - true once the database is open and the journal replayed
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return - scan-to-commit latency of every scan committed so far
+	 */
+	public LatencyHistogram getCommitLatency() {
+		return commitLatency;
+	}
+
+	/**
+	 * @return - transactions committed so far. Scans / commits is the average batch size
+	 */
+	public long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * Stop the writer after it commits everything that's been queued
+	 *
+	 * @param timeoutMs - how long to wait for the writer to finish
+	 * @return			- true if it has. false if it's still going (in a commit, or opening the database),
+	 * 					  so the database mustn't be closed under it
+	 */
+	public boolean shutdown(long timeoutMs) {
+		stopping = true;
+		try {
+			writer.join(timeoutMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return !writer.isAlive();
+	}
+
+} // end class ScanPipeline
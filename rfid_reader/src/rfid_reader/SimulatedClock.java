@@ -0,0 +1,104 @@
+/**
+ * Name:
+ * 		SimulatedClock - a clock that starts wherever we say and runs as fast as we say
+ *
+ * Description:
+ * 		Everything that needs "now" (scans, the attendance cache's day rollover) gets it from the
+ * 		Database's java.time.Clock. On the kiosk that's the system clock. For testing:
+ * 			- Clock.fixed					- the same instant forever (--date on its own)
+ * 			- SimulatedClock, speed > 0		- starts at an instant and runs speed times faster than real time
+ * 											  (--date with --sim-speed), so simulated readers can
+ * 											  run through days of scans in minutes
+ * 			- SimulatedClock, speed 0		- only moves when set() or advance() is called. Tester and
+ * 											  Benchmark step it through a season at full speed
+ *
+ * 		Thread safe. Reading the time doesn't lock or allocate.
+ */
+
+package rfid_reader;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SimulatedClock extends Clock {
+
+	private final ZoneId zone;
+	private final double speed;							// Simulated milliseconds per real millisecond. 0 = stopped
+	private final AtomicReference<Base> base;			// Shared with withZone() copies
+
+	/** Simulated time at a real System.nanoTime() */
+	private static final class Base {
+		final long millis;
+		final long nanos;
+
+		Base(long millis, long nanos) {
+			this.millis = millis;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * @param start	- simulated time right now
+	 * @param speed	- how much faster than real time it runs. 0 for a clock that only moves when it's set
+	 */
+	public SimulatedClock(Instant start, double speed) {
+		this(Constants.TIME_ZONE, speed, new AtomicReference<Base>(new Base(start.toEpochMilli(), System.nanoTime())));
+	}
+
+	private SimulatedClock(ZoneId zone, double speed, AtomicReference<Base> base) {
+		this.zone = zone;
+		this.speed = speed;
+		this.base = base;
+	}
+
+	/**
+	 * Jump to a time. The clock keeps running (at its speed) from there
+	 *
+	 * @param millis - epoch milliseconds
+	 */
+	public void set(long millis) {
+		base.set(new Base(millis, System.nanoTime()));
+	}
+
+	/**
+	 * Move the clock forward
+	 *
+	 * @param millis - how far
+	 */
+	public void advance(long millis) {
+		synchronized (base) {
+			set(millis() + millis);
+		}
+	}
+
+	@Override
+	public long millis() {
+		Base b = base.get();
+		if (speed == 0) {
+			return b.millis;
+		}
+		return b.millis + (long) ((System.nanoTime() - b.nanos) * speed / 1000000);
+	}
+
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(millis());
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		return zone.equals(this.zone) ? this : new SimulatedClock(zone, speed, base);
+	}
+
+	public String toString() {
+		return "SimulatedClock[" + instant() + " x" + speed + "]";
+	}
+
+} // end class SimulatedClock
@@ -0,0 +1,168 @@
+/**
+ * Name:
+ * 		SimulatedTagReader - a pretend card reader for load testing without hardware
+ *
+ * Description:
+ * 		Replays a list of RFID UIDs (hex strings, usually every RFID tag in the roster) over and over,
+ * 		as if students were tapping them on a reader. Everything past the reader - tag lookup,
+ * 		write_user, the scan pipeline and the DB - is the real code, so with a few of these running
+ * 		we can push thousands of scans a second through on a headless box.
+ *
+ * 		Knobs:
+ * 			rate			- taps per second (0 = as fast as the rest of the pipeline will take them)
+ * 			tap latency		- how long reading the tag takes (time on the reader before the UID comes back)
+ * 			remove latency	- how long the tag sits on the reader after it's read
+ * 			failures		- fraction of taps that come back with a bad status word (6300, like a bad read
+ * 							  on the ACR122) and fraction that throw CardNotPresentException (tag pulled away mid read)
+ * 			limit			- number of taps before the reader reports NO_MORE_TAGS (0 = forever)
+ *
+ * 		Failures are random but seeded so a run can be repeated.
+ */
+
+package rfid_reader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+
+public class SimulatedTagReader implements TagReader {
+
+	public static final int SW_READ_FAILED = 0x6300;	// What the ACR122 returns when it can't read the tag
+
+	private final String name;
+	private final List<String> uids;
+	private int next;									// Index of the next UID to tap
+	private final long intervalNanos;					// Time from the start of one tap to the start of the next
+	private long tapNanos = 0;
+	private long removeNanos = 0;
+	private double swErrorRate = 0;
+	private double notPresentRate = 0;
+	private long limit = 0;
+	private long taps = 0;
+	private long nextTap = 0;							// System.nanoTime() of the next tap
+	private final Random random;
+
+	/**
+	 * @param name			- reader name (shows up in messages and the thread name)
+	 * @param uids			- hex UIDs to replay, in order, round and round
+	 * @param tapsPerSecond	- tap rate. 0 for no pacing
+	 * @param seed			- random seed for the failure injection. Also picks where in the list we start
+	 * 						  so several readers don't all tap the same tags in lock step
+	 */
+	public SimulatedTagReader(String name, List<String> uids, double tapsPerSecond, long seed) {
+		if (uids.isEmpty()) {
+			throw new IllegalArgumentException("Simulated reader " + name + " needs at least one UID to replay");
+		}
+		this.name = name;
+		this.uids = new ArrayList<String>(uids);
+		this.intervalNanos = (tapsPerSecond > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / tapsPerSecond) : 0;
+		this.random = new Random(seed);
+		this.next = random.nextInt(this.uids.size());
+	}
+
+	/**
+	 * @param tapMs		- time to read a tag
+	 * @param removeMs	- time the tag stays on the reader after it's read
+	 * @return			- this
+	 */
+	public SimulatedTagReader setLatency(double tapMs, double removeMs) {
+		this.tapNanos = (long) (tapMs * 1000000);
+		this.removeNanos = (long) (removeMs * 1000000);
+		return this;
+	}
+
+	/**
+	 * @param swErrorRate		- fraction (0..1) of taps that return SW_READ_FAILED
+	 * @param notPresentRate	- fraction (0..1) of taps that throw CardNotPresentException
+	 * @return					- this
+	 */
+	public SimulatedTagReader setFailureRates(double swErrorRate, double notPresentRate) {
+		this.swErrorRate = swErrorRate;
+		this.notPresentRate = notPresentRate;
+		return this;
+	}
+
+	/**
+	 * @param taps	- stop (NO_MORE_TAGS) after this many taps. 0 for no limit
+	 * @return		- this
+	 */
+	public SimulatedTagReader setLimit(long taps) {
+		this.limit = taps;
+		return this;
+	}
+
+	/**
+	 * @return - number of UIDs it replays. That many taps in a row tap each of them once (if none fail)
+	 */
+	public int getUidCount() {
+		return uids.size();
+	}
+
+	/**
+	 * @return - taps so far, including failed ones
+	 */
+	public long getTaps() {
+		return taps;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int readTag(TagUid uid) throws CardException, InterruptedException {
+
+		if (limit > 0 && taps >= limit) {
+			return NO_MORE_TAGS;
+		}
+
+		// Pace the taps. If we fell behind (the pipeline pushed back) don't try to catch up with a burst
+		long now = System.nanoTime();
+		if (nextTap == 0 || nextTap < now) {
+			nextTap = now;
+		}
+		pause(nextTap - now);
+		nextTap += intervalNanos;
+		taps++;
+
+		long present = System.nanoTime();
+		pause(tapNanos);
+		Metrics.CARD_READ.record(System.nanoTime() - present);
+
+		double roll = random.nextDouble();
+		if (roll < notPresentRate) {
+			throw new CardNotPresentException("Simulated: card removed during read on " + name);
+		}
+		if (roll < notPresentRate + swErrorRate) {
+			return SW_READ_FAILED;
+		}
+
+		uid.set(uids.get(next));
+		next = (next + 1) % uids.size();
+		return ISO7816.SW_NO_ERROR;
+
+	} // end readTag
+
+	public void waitForTagRemoved() throws InterruptedException {
+		pause(removeNanos);
+	}
+
+	/**
+	 * Sleep with better than millisecond resolution (thousands of taps a second means sub-ms intervals)
+	 */
+	private static void pause(long nanos) throws InterruptedException {
+		long deadline = System.nanoTime() + nanos;
+		long left;
+		while ((left = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(left);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+} // end class SimulatedTagReader
@@ -0,0 +1,187 @@
+package rfid_reader;
+
+/**
+ * Compact tag -> user index. Replaces the HashMap<String, UserTag> maps in UserTags.
+ *
+ * Keys are 128 bits (two longs) instead of Strings:
+ * 		RFID	- MiFare UIDs are at most 10 bytes (20 hex digits) so the value fits in 80 bits.
+ * 				  The number of hex digits goes in the top byte so "0015" and "15" stay different tags.
+ * 		Barcode	- Student IDs are all digits. At most 18 digits fit in a long. Again the digit count
+ * 				  goes in the high long so leading zeros still matter.
+ * Values are ordinals into the UserTags user list, not object references.
+ *
+ * Open addressing with linear probing in parallel primitive arrays, kept at most half full.
+ * A lookup is a couple of multiplies and array reads - no String hashing, no boxing, no garbage -
+ * and an entry costs ~40 bytes with the slack, so a district-wide roster of tens of thousands of
+ * students fits comfortably on the kiosk.
+ *
+ * Not thread safe for writers. Built once, then only read.
+ */
+public class TagIndex {
+
+	public static final int MAX_HEX_DIGITS = 2 * TagUid.MAX_UID_BYTES;
+	public static final int MAX_BARCODE_DIGITS = 18;
+
+	private long[] key_hi;
+	private long[] key_lo;
+	private int[] values;				// ordinal + 1. Zero means the slot is empty
+	private int size = 0;
+
+	public TagIndex(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		key_hi = new long[capacity];
+		key_lo = new long[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * Add or replace a key
+	 *
+	 * @return - the ordinal that was replaced, or -1 if the key is new
+	 */
+	public int put(long hi, long lo, int ordinal) {
+
+		if (2 * (size + 1) > values.length) {
+			grow();
+		}
+
+		int mask = values.length - 1;
+		int i = hash(hi, lo) & mask;
+		while (values[i] != 0) {
+			if (key_hi[i] == hi && key_lo[i] == lo) {
+				int old = values[i] - 1;
+				values[i] = ordinal + 1;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		key_hi[i] = hi;
+		key_lo[i] = lo;
+		values[i] = ordinal + 1;
+		size++;
+		return -1;
+
+	} // end put
+
+	/**
+	 * @return - ordinal for this key or -1 if it isn't in the index
+	 */
+	public int get(long hi, long lo) {
+
+		int mask = values.length - 1;
+		int i = hash(hi, lo) & mask;
+		int v;
+		while ((v = values[i]) != 0) {
+			if (key_hi[i] == hi && key_lo[i] == lo) {
+				return v - 1;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+
+	} // end get
+
+	public int size() {
+		return size;
+	}
+
+	private void grow() {
+		long[] old_hi = key_hi;
+		long[] old_lo = key_lo;
+		int[] old_values = values;
+
+		key_hi = new long[old_values.length * 2];
+		key_lo = new long[old_values.length * 2];
+		values = new int[old_values.length * 2];
+		size = 0;
+		for (int i = 0; i < old_values.length; i++) {
+			if (old_values[i] != 0) {
+				put(old_hi[i], old_lo[i], old_values[i] - 1);
+			}
+		}
+	}
+
+	private static int hash(long hi, long lo) {
+		long h = lo * 0x9E3779B97F4A7C15L + hi;	// Golden ratio multiply, then fold the high bits down
+		h ^= (h >>> 32);
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 29));
+	}
+
+	/*
+	 * Key encoders. Each returns false if the tag can't be a key (wrong characters or too long).
+	 * The key is returned in out[0] (high) and out[1] (low) so the caller can reuse the array.
+	 */
+
+	/**
+	 * Key for a hex RFID UID string (as in the tags CSV). Upper or lower case.
+	 */
+	public static boolean rfidKey(CharSequence uid, long[] out) {
+
+		int n = uid.length();
+		if (n == 0 || n > MAX_HEX_DIGITS) {
+			return false;
+		}
+		long hi = 0;
+		long lo = 0;
+		for (int i = 0; i < n; i++) {
+			int d = Character.digit(uid.charAt(i), 16);
+			if (d < 0) {
+				return false;
+			}
+			hi = (hi << 4) | (lo >>> 60);
+			lo = (lo << 4) | d;
+		}
+		out[0] = hi | ((long) n << 56);
+		out[1] = lo;
+		return true;
+
+	} // end rfidKey
+
+	/**
+	 * Key for raw UID bytes straight from the card. Same key as rfidKey() of their hex string.
+	 */
+	public static boolean rfidKey(byte[] data, int off, int len, long[] out) {
+
+		if (len == 0 || len > TagUid.MAX_UID_BYTES) {
+			return false;
+		}
+		long hi = 0;
+		long lo = 0;
+		for (int i = off; i < off + len; i++) {
+			hi = (hi << 8) | (lo >>> 56);
+			lo = (lo << 8) | (data[i] & 0xFF);
+		}
+		out[0] = hi | ((long) (2 * len) << 56);
+		out[1] = lo;
+		return true;
+
+	} // end rfidKey
+
+	/**
+	 * Key for an all-digit student ID barcode
+	 */
+	public static boolean barcodeKey(CharSequence barcode, long[] out) {
+
+		int n = barcode.length();
+		if (n == 0 || n > MAX_BARCODE_DIGITS) {
+			return false;
+		}
+		long value = 0;
+		for (int i = 0; i < n; i++) {
+			char c = barcode.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+			value = value * 10 + (c - '0');
+		}
+		out[0] = n;
+		out[1] = value;
+		return true;
+
+	} // end barcodeKey
+
+} // end class TagIndex
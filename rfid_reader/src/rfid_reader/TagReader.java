@@ -0,0 +1,50 @@
+/**
+ * Name:
+ * 		TagReader - a source of RFID tag taps
+ *
+ * Description:
+ * 		The reader loop in RFIDreader (and tagInventory) only needs three things from a card reader:
+ * 		wait for a tag, get its UID, and wait for the tag to be taken away. This is that, so the
+ * 		loop doesn't care whether the taps come from a real reader or not.
+ *
+ * 		Implementations:
+ * 			PcscTagReader		- an ACR122 (or any PC/SC reader) via javax.smartcardio
+ * 			SimulatedTagReader	- replays a list of UIDs at a configurable rate, with injected failures.
+ * 								  For load testing everything past the reader on a box with no readers.
+ *
+ * 		One thread per TagReader. Implementations don't need to be thread safe.
+ */
+
+package rfid_reader;
+
+import javax.smartcardio.CardException;
+
+public interface TagReader {
+
+	int NO_MORE_TAGS = -1;			// readTag() status when the reader is gone (unplugged, simulation finished)
+
+	/**
+	 * @return - reader name for messages and the thread name
+	 */
+	String getName();
+
+	/**
+	 * Block until a tag is on the reader, then read its UID.
+	 * The card is released before returning; call waitForTagRemoved() before reading the next tag.
+	 *
+	 * @param uid	- set to the tag's UID if the read succeeded
+	 * @return		- SW1+SW2 status word. ISO7816.SW_NO_ERROR if we have a UID, NO_MORE_TAGS if the reader is gone
+	 * @throws CardException			- the read failed (e.g. CardNotPresentException when the tag was pulled away too fast)
+	 * @throws InterruptedException
+	 */
+	int readTag(TagUid uid) throws CardException, InterruptedException;
+
+	/**
+	 * Block until the tag that was just read is taken off the reader
+	 *
+	 * @throws CardException
+	 * @throws InterruptedException
+	 */
+	void waitForTagRemoved() throws CardException, InterruptedException;
+
+} // end interface TagReader
@@ -0,0 +1,127 @@
+package rfid_reader;
+
+/**
+ * A reusable RFID tag UID, as read from the card.
+ *
+ * Every tap used to go through bin2hex: a BigInteger, a format string and String.format
+ * just to turn 4-10 bytes into hex. On the kiosk PC the garbage from that (and the rest of the
+ * read path) shows up as GC pauses. A reader thread keeps one TagUid and re-fills it on every tap
+ * with no allocation: the TagIndex key for the UID (so UserTags.getUser(TagUid) never needs a String)
+ * and the hex digits (table driven) for messages.
+ *
+ * Not thread safe. One per reader thread.
+ */
+public class TagUid implements CharSequence {
+
+	public static final int MAX_UID_BYTES = 10;			// MiFare UIDs are 4, 7 or 10 bytes
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final char[] chars = new char[2 * MAX_UID_BYTES];
+	private int length = 0;
+	private final long[] key = new long[2];			// TagIndex key: high, low
+
+	/**
+	 * Encode UID bytes as upper case hex, replacing whatever was here before
+	 *
+	 * @param data	- buffer holding the UID
+	 * @param off	- offset of the first UID byte
+	 * @param len	- number of UID bytes (at most MAX_UID_BYTES)
+	 * @return		- this
+	 */
+	public TagUid set(byte[] data, int off, int len) {
+		if (len > MAX_UID_BYTES) {
+			throw new IllegalArgumentException("RFID UID is " + len + " bytes. The most we expect is " + MAX_UID_BYTES);
+		}
+		length = encode(data, off, len, chars);
+		if (!TagIndex.rfidKey(data, off, len, key)) {	// Empty UID. Use a key no tag can have
+			key[0] = -1L;
+			key[1] = -1L;
+		}
+		return this;
+	}
+
+	/**
+	 * Set from a hex string (e.g. a tag from the tags CSV), replacing whatever was here before.
+	 * Used by SimulatedTagReader. Gets the same key as the tags file so the lookup matches.
+	 *
+	 * @param hex	- hex digits, upper or lower case. At most 2 * MAX_UID_BYTES
+	 * @return		- this
+	 */
+	public TagUid set(CharSequence hex) {
+		int n = hex.length();
+		if (n > chars.length) {
+			throw new IllegalArgumentException("RFID UID is " + n + " hex digits. The most we expect is " + chars.length);
+		}
+		for (int i = 0; i < n; i++) {
+			chars[i] = Character.toUpperCase(hex.charAt(i));
+		}
+		length = n;
+		if (!TagIndex.rfidKey(hex, key)) {				// Not hex. Use a key no tag can have
+			key[0] = -1L;
+			key[1] = -1L;
+		}
+		return this;
+	}
+
+	/**
+	 * Table driven hex encoding. Upper case, two characters per byte, leading zeros kept
+	 * (same output as RFIDreader.bin2hex always produced)
+	 *
+	 * @param data	- bytes to encode
+	 * @param off	- offset of the first byte
+	 * @param len	- number of bytes
+	 * @param out	- destination, at least 2 * len characters
+	 * @return		- number of characters written
+	 */
+	public static int encode(byte[] data, int off, int len, char[] out) {
+		int j = 0;
+		for (int i = off; i < off + len; i++) {
+			int b = data[i] & 0xFF;
+			out[j++] = HEX[b >>> 4];
+			out[j++] = HEX[b & 0x0F];
+		}
+		return j;
+	}
+
+	/**
+	 * @return - high half of the TagIndex key
+	 */
+	public long keyHigh() {
+		return key[0];
+	}
+
+	/**
+	 * @return - low half of the TagIndex key
+	 */
+	public long keyLow() {
+		return key[1];
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index >= length) {
+			throw new IndexOutOfBoundsException("index: " + index + " length: " + length);
+		}
+		return chars[index];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	/**
+	 * Allocates. Only for messages and logging
+	 */
+	@Override
+	public String toString() {
+		return new String(chars, 0, length);
+	}
+
+} // end class TagUid
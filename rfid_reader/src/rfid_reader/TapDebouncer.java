@@ -0,0 +1,119 @@
+/**
+ * Name:
+ * 		TapDebouncer - the same student again within a few seconds is one tap, not a sign in and a sign out
+ *
+ * Description:
+ * 		A tag left on the reader that loses and gets the field back, or a student tapping twice to be
+ * 		sure, used to be two scans: signed in, then signed out again with 0 minutes (and the sign out
+ * 		went through the scan journal and a DB transaction like any other scan). write_user asks this
+ * 		first and drops the second tap.
+ *
+ * 		Each user is in one of two states:
+ * 			idle	- no tap in the last window. Their next tap is a scan
+ * 			present	- a scan was counted (tapped()), and they've tapped again since less than a window
+ * 					  ago. Another tap is a repeat: it's dropped and starts the window over, so a tag
+ * 					  that keeps bouncing on the reader never counts again until it's been gone for a
+ * 					  whole window
+ * 		A user goes from idle to present only when write_user says the scan was counted (not when it
+ * 		failed, so they can try again right away), and back to idle when the window runs out.
+ *
+ * 		Per user rather than per UID, so a tag tap and a Student ID scan of the same student count once
+ * 		too. Every tap of a present user goes on a ring in the order they came (so the oldest is always
+ * 		next to expire) and the user's latest tap is in a map (so finding one is a hash lookup). A tap
+ * 		expires the taps older than the window off the end of the ring (a user goes idle when it's their
+ * 		latest one), then looks the user up. Both O(1): expiring is amortized, every tap goes on the ring
+ * 		once and comes off once.
+ *
+ * 		If more than capacity taps come in one window (a load test) the oldest are forgotten early.
+ * 		Times are the DB's clock, so a simulated clock (LoadGenerator, --date) debounces in its time.
+ *
+ * 		Not thread safe. write_user's lock covers it.
+ */
+
+package rfid_reader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TapDebouncer {
+
+	private final long windowMillis;
+	private final int mask;
+	private final String[] users;							// Ring of taps in the window, oldest at tail
+	private final long[] times;
+	private long head = 0;									// Next tap goes here
+	private long tail = 0;									// Oldest tap still in the window
+	private final Map<String, Long> present = new HashMap<String, Long>();	// Present users: ring position of their latest tap
+
+	/**
+	 * @param windowMillis	- a user tapping again within this is a repeat
+	 * @param capacity		- taps the ring holds. Rounded up to a power of two
+	 */
+	public TapDebouncer(long windowMillis, int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.windowMillis = windowMillis;
+		mask = size - 1;
+		users = new String[size];
+		times = new long[size];
+	}
+
+	/**
+	 * Is this tap a repeat? If it is, the window starts over from now
+	 *
+	 * @param user	- username that just tapped
+	 * @param now	- when, epoch millis
+	 * @return		- true if they're present (their last tap was within the window). Drop this one
+	 */
+	public boolean isRepeat(String user, long now) {
+
+		while (tail < head) {								// Expire what's out of the window
+			long t = times[(int) tail & mask];
+			if (now - t < windowMillis && now >= t) {		// now < t: the clock went back. Start over
+				break;
+			}
+			forget();
+		}
+
+		if (!present.containsKey(user)) {
+			return false;
+		}
+		add(user, now);										// Still here. Window starts over
+		return true;
+
+	} // end isRepeat
+
+	/**
+	 * A tap that isn't a repeat was counted. The user is present for the window
+	 *
+	 * @param user	- username that tapped
+	 * @param now	- when, epoch millis (same as isRepeat got)
+	 */
+	public void tapped(String user, long now) {
+		add(user, now);
+	}
+
+	private void add(String user, long now) {
+		if (head - tail > mask) {							// Full. Make room
+			forget();
+		}
+		int i = (int) head & mask;
+		users[i] = user;
+		times[i] = now;
+		present.put(user, head);
+		head++;
+	}
+
+	/**
+	 * Take the oldest tap off the ring. If it's its user's latest, they're idle again
+	 */
+	private void forget() {
+		int i = (int) tail & mask;
+		Long latest = present.get(users[i]);
+		if (latest != null && latest == tail) {
+			present.remove(users[i]);
+		}
+		users[i] = null;
+		tail++;
+	}
+
+} // end class TapDebouncer
@@ -1,9 +1,15 @@
 package rfid_reader;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
 
 /**
  * Class for automated regression testing
@@ -14,13 +20,41 @@ import java.util.Date;
 public class Tester {
 	
 	private static Database db;
+	private static long start_time = Days.parseTime("2018/01/06 09:01:00");	// First login of the season. --date to change it
+	
+	// Load test (see LoadGenerator). Any of --users, --days, --taps or --threads runs it instead of the regression test
+	private static boolean load_test = false;
+	private static int load_users = 60;
+	private static int load_days = 46;
+	private static int load_taps = 2;
+	private static int load_threads = 1;
+	private static Constants.CommitDurability durability = Constants.CommitDurability.GROUP;
+	private static Constants.DatabaseProfile profile = null;		// --profile: null for kiosk, or report when read only
+	private static boolean journal_test = false;					// --journal: run the scan journal test instead
 	
 	
-	public static void main(String[] args) throws ParseException, InterruptedException {
+	public static void main(String[] args) throws InterruptedException, IOException {
 	
 		parseCommandLine(args);
 		
+		if (load_test) {
+			new LoadGenerator(load_users, load_days, load_taps, load_threads)
+				.setDurability(durability, Constants.SCAN_BATCH_DELAY_MS)
+				.setProfile(profile)
+				.run(start_time);
+			System.exit(0);
+		}
+		
+		if (journal_test) {
+			System.exit(journalTest() ? 0 : 1);
+		}
+		
+		// The season is simulated by stepping this clock. It only moves when we move it,
+		// so the whole season runs as fast as the DB can take the writes
+		SimulatedClock clock = new SimulatedClock(Instant.ofEpochMilli(start_time), 0);
 		db = new Database();
+		db.setClock(clock);
+		db.setProfile(profile);
 		db.DBinit(Constants.DATABASE_DIR_TESTING, false);			// Open test DB for read-write access
 		
 
@@ -33,45 +67,31 @@ public class Tester {
     	// TODO: Need to delete current DB directory so we build the data from scratch
     	
     	
-    	SimpleDateFormat formatter = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
- 
-    	final String START_OF_BUILD_SEASON = "2018/01/06 09:01:00";
-    	final String END_OF_BUILD_SEASON   = "2018/02/20 23:59:00";
+    	final int SEASON_DAYS = 46;			// Jan 6th - Feb 20th
+    	ZonedDateTime start = Instant.ofEpochMilli(start_time).atZone(Constants.TIME_ZONE);
     	
-    	
-    	
-	   	Date date_start = formatter.parse(START_OF_BUILD_SEASON);
-	   	Date date_end 	= formatter.parse(END_OF_BUILD_SEASON);
-
-		Calendar cal_start = Calendar.getInstance();
-		cal_start.setTime(date_start);
-		Calendar cal_end = Calendar.getInstance();
-		cal_end.setTime(date_end);
-	
-		while( !cal_start.after(cal_end)) { // For each day of the season
-		    Date d = cal_start.getTime();
-		    Debug.setDateObj(d); 				// Simulate this date system-wide
-		    System.out.println("Time in :" + d + "============================================================================================================");
+		for (int day = 0; day < SEASON_DAYS; day++) { // For each day of the season
+		    long d = start.plusDays(day).toInstant().toEpochMilli();	// Same time of day, even across a daylight saving change
+		    clock.set(d); 						// Simulate this date for the DB
+		    System.out.println("Time in :" + Days.formatTime(d) + "============================================================================================================");
 		    
 		    // For each of the 60 student test RFID tags - Login for this day
 		    for (int i = 10001; i < 10060; i++ ) {  	
 		    	UserTag user = UserTags.getUser(Integer.toString(i), Constants.TagType.RFID);
-		    	Debug.log("User is: " + user);	
+		    	Log.debug("User is: {}", user);	
 		    	db.write(user.getUsername());
 		    }
 		    
-		    d = new Date(d.getTime() + 3 * Constants.HOUR); 	// Three hours later
-		    Debug.setDateObj(d);
-		    System.out.println("Time out: " + d +"============================================================================================================");
+		    clock.advance(3 * Constants.HOUR); 	// Three hours later
+		    System.out.println("Time out: " + Days.formatTime(clock.millis()) +"============================================================================================================");
 		    
 		    // For each of the 60 student test RFID tags - Logout for this day
 		    for (int i = 10001; i < 10060; i++ ) { 	
 		    	UserTag user = UserTags.getUser(Integer.toString(i), Constants.TagType.RFID);
-		    	Debug.log("User is: " + user);	
+		    	Log.debug("User is: {}", user);	
 		    	db.write(user.getUsername());
 		    }	    
 		    //Thread.sleep(10000);				// Delay so I could watch debug output
-		    cal_start.add(Calendar.DATE, 1);   	// .. tomorrow is just a day away...
 		    
 		} // end for each day of the season 
 
@@ -114,16 +134,52 @@ public class Tester {
     			if        (argument.equals("-d") || argument.equals("--debug") ) {
     			    Debug.enable(true);
     			
-    			} else if (argument.startsWith("--date")) {						// --date="yyyy/MM/dd hh:mm"
+    			} else if (argument.startsWith("--date")) {						// --date="yyyy/MM/dd hh:mm" first login of the season
     				if (argument.contains("=")) {
         				String s[] = argument.split("=");
         				if (s.length > 1 && !s[1].isEmpty()) {
-        					Debug.setDate(s[1]);					
+        					try {
+        						start_time = Days.parseTime(s[1]);
+        					} catch (DateTimeParseException e) {
+        						System.err.println("ERROR: Date format must be 'yyyy/mm/dd hh:mm:ss [AM|PM]'");
+        						System.exit(1);
+        					}
         				}
     				}
     			
+    			} else if (argument.startsWith("--users=")) {					// Load test: users in the roster
+    				load_users = parseCount(argument);
+    				
+    			} else if (argument.startsWith("--days=")) {					// Load test: days in the season
+    				load_days = parseCount(argument);
+    				
+    			} else if (argument.startsWith("--taps=")) {					// Load test: taps per user per day
+    				load_taps = parseCount(argument);
+    				
+    			} else if (argument.startsWith("--threads=")) {				// Load test: readers tapping at once
+    				load_threads = parseCount(argument);
+    				
+    			} else if (argument.startsWith("--durability=")) {				// Load test: --durability=sync|nosync|group
+    				String mode = argument.substring("--durability=".length());
+    				if (mode.equals("sync")) {
+    					durability = Constants.CommitDurability.SYNC;
+    				} else if (mode.equals("nosync")) {
+    					durability = Constants.CommitDurability.WRITE_NO_SYNC;
+    				} else if (mode.equals("group")) {
+    					durability = Constants.CommitDurability.GROUP;
+    				} else {
+    					Usage();
+    				}
+    				
+    			} else if (argument.equals("--journal")) {						// Scan journal test (see journalTest)
+    				journal_test = true;
+    				
+    			} else if (argument.startsWith("--profile=")) {					// --profile=kiosk|report|default. Before -r
+    				profile = RFIDreader.parseProfile(argument);
+    				
     			} else if (argument.equals("-r") || argument.equals("--report")) {
     				db = new Database();
+    				db.setProfile(profile);
     				db.DBinit(Constants.DATABASE_DIR_TESTING, true);			// Open for read-only access
     				db.reportFromDB();
     				System.exit(0);
@@ -137,8 +193,205 @@ public class Tester {
 		
 	} // end parseCommandLine
 
+	/**
+	 * Scans taken while the database is down, with a journal that was deleted since the last run, still
+	 * make it into the database. The new journal numbers its scans from 1 again, below the mark the
+	 * database has from the old one.
+	 * 
+	 * Run 1 scans 5 users in and shuts down. The journal is deleted. Run 2 journals 2 more users before
+	 * the database is open (as if it wouldn't open), then opens it and replays them. Both should have
+	 * a record for the day.
+	 * 
+	 * And a batch that doesn't commit isn't lost, even though the cache has counted it. Run 3's first
+	 * commit fails: it and the scan after it should both be saved when it's retried. Every one of run 4's
+	 * commits fails until it's shut down: run 5 should replay its scan from the journal.
+	 * 
+	 * @return - true if it passed
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static boolean journalTest() throws IOException, InterruptedException {
+		
+		Benchmark.deleteDir(Constants.DATABASE_DIR_JOURNAL_TEST);
+		String db_dir = Constants.DATABASE_DIR_JOURNAL_TEST + "/db";
+		File journal_file = new File(Constants.DATABASE_DIR_JOURNAL_TEST + "/scan_journal.dat");
+		UserTags.read_user_tags(Constants.USER_RFIDTAG_MAPPING_TESTING_FILENAME);
+		SimulatedClock clock = new SimulatedClock(Instant.ofEpochMilli(start_time), 0);
+		
+		// Run 1: the database is open. Its mark ends up at 5
+		Database run1 = new Database();
+		run1.setClock(clock);
+		ScanJournal journal = new ScanJournal(journal_file.getPath(), 64);
+		ScanPipeline pipeline = new ScanPipeline(run1, Constants.CommitDurability.SYNC, 0, journal);
+		pipeline.start(db_dir);
+		while (!pipeline.isReady()) {
+			Thread.sleep(10);
+		}
+		for (int i = 10001; i <= 10005; i++) {
+			pipeline.scan(UserTags.getUser(Integer.toString(i), Constants.TagType.RFID).getUsername(),
+					Constants.TagType.RFID, Integer.toString(i), System.nanoTime());
+		}
+		pipeline.shutdown(5000);
+		run1.close();
+		journal.close();
+		
+		if (!journal_file.delete()) {
+			System.err.println("FAILED: couldn't delete " + journal_file);
+			return false;
+		}
+		
+		// Run 2: a new journal. Scans 1 and 2 are taken before the database opens
+		clock.advance(Constants.HOUR);
+		Database run2 = new Database();
+		run2.setClock(clock);
+		journal = new ScanJournal(journal_file.getPath(), 64);
+		pipeline = new ScanPipeline(run2, Constants.CommitDurability.SYNC, 0, journal);
+		String[] late = { "10010", "10011" };
+		for (String uid : late) {
+			Constants.LoginType login_type = pipeline.scan(UserTags.getUser(uid, Constants.TagType.RFID).getUsername(),
+					Constants.TagType.RFID, uid, System.nanoTime());
+			if (login_type != Constants.LoginType.SAVED) {
+				System.err.println("FAILED: scan before the database opened was " + login_type + ", not SAVED");
+				return false;
+			}
+		}
+		pipeline.start(db_dir);
+		while (!pipeline.isReady()) {
+			Thread.sleep(10);
+		}
+		pipeline.shutdown(5000);
+		
+		boolean passed = true;
+		int day = Days.of(clock.millis());
+		for (String uid : late) {
+			String user = UserTags.getUser(uid, Constants.TagType.RFID).getUsername();
+			if (run2.getUserDay(day, user) == null) {
+				System.err.println("FAILED: " + user + "'s scan from the new journal isn't in the database");
+				passed = false;
+			}
+		}
+		run2.close();
+		
+		// Run 3: the first commit fails. The scan after it waits for the retry
+		AtomicInteger failures = new AtomicInteger(1);
+		AtomicInteger attempts = new AtomicInteger();
+		Database run3 = failingDatabase(failures, attempts);
+		run3.setClock(clock);
+		pipeline = new ScanPipeline(run3, Constants.CommitDurability.SYNC, 0, journal);
+		pipeline.start(db_dir);
+		while (!pipeline.isReady()) {
+			Thread.sleep(10);
+		}
+		String[] retried = { "10020", "10021" };
+		long last = 0;
+		for (String uid : retried) {
+			pipeline.scan(UserTags.getUser(uid, Constants.TagType.RFID).getUsername(), Constants.TagType.RFID, uid, System.nanoTime());
+			last = journal.getApplied() + journal.getPending();
+			while (attempts.get() == 0) {
+				Thread.sleep(10);						// The second scan comes in while the first is failing
+			}
+		}
+		for (int i = 0; i < 100 && journal.getApplied() < last; i++) {
+			Thread.sleep(100);
+		}
+		pipeline.shutdown(5000);
+		for (String uid : retried) {
+			String user = UserTags.getUser(uid, Constants.TagType.RFID).getUsername();
+			if (run3.getUserDay(day, user) == null) {
+				System.err.println("FAILED: " + user + "'s scan wasn't saved when its commit was retried");
+				passed = false;
+			}
+		}
+		Long mark = run3.getJournalApplied(journal.getId());
+		if (mark == null || mark != last) {
+			System.err.println("FAILED: the database's journal mark is " + mark + " after the retry, not " + last);
+			passed = false;
+		}
+		run3.close();
+		
+		// Run 4: no commit works. Shut down with the scan still not saved
+		failures.set(Integer.MAX_VALUE);
+		attempts.set(0);
+		Database run4 = failingDatabase(failures, attempts);
+		run4.setClock(clock);
+		pipeline = new ScanPipeline(run4, Constants.CommitDurability.SYNC, 0, journal);
+		pipeline.start(db_dir);
+		while (!pipeline.isReady()) {
+			Thread.sleep(10);
+		}
+		String lost = UserTags.getUser("10030", Constants.TagType.RFID).getUsername();
+		if (pipeline.scan(lost, Constants.TagType.RFID, "10030", System.nanoTime()) != Constants.LoginType.LOGIN) {
+			System.err.println("FAILED: " + lost + " wasn't signed in");
+			passed = false;
+		}
+		while (attempts.get() == 0) {
+			Thread.sleep(10);
+		}
+		if (!pipeline.shutdown(5000)) {
+			System.err.println("FAILED: the scan writer didn't stop while its commit was failing");
+			return false;
+		}
+		run4.close();
+		
+		// Run 5: the database works again. The scan comes back from the journal
+		Database run5 = new Database();
+		run5.setClock(clock);
+		pipeline = new ScanPipeline(run5, Constants.CommitDurability.SYNC, 0, journal);
+		pipeline.start(db_dir);
+		while (!pipeline.isReady()) {
+			Thread.sleep(10);
+		}
+		pipeline.shutdown(5000);
+		if (run5.getUserDay(day, lost) == null) {
+			System.err.println("FAILED: " + lost + "'s scan from the failed commit wasn't replayed");
+			passed = false;
+		}
+		run5.close();
+		journal.close();
+		System.out.println(passed ? "PASSED: scan journal test" : "FAILED: scan journal test");
+		return passed;
+		
+	} // end journalTest
+	
+	/**
+	 * @param failures	- how many more of its scan batches fail to commit
+	 * @param attempts	- counts the commits it failed
+	 * @return			- a database whose scan batches fail (before anything is written) while failures is above 0
+	 */
+	private static Database failingDatabase(final AtomicInteger failures, final AtomicInteger attempts) {
+		return new Database() {
+			public void writeBatch(List<DatabaseUserDay> records, Durability durability, long journalId, long journalSeq)
+					throws DatabaseException {
+				if (failures.getAndDecrement() > 0) {
+					attempts.incrementAndGet();
+					throw new IllegalStateException("Tester: commit failed on purpose");
+				}
+				super.writeBatch(records, durability, journalId, journalSeq);
+			}
+		};
+	}
+	
+	/**
+	 * @param argument	- "--name=<count>"
+	 * @return			- the count (and it's a load test). Prints the usage and exits if it isn't a positive number
+	 */
+	private static int parseCount(String argument) {
+		try {
+			int n = Integer.parseInt(argument.substring(argument.indexOf('=') + 1));
+			if (n > 0) {
+				load_test = true;
+				return n;
+			}
+		} catch (NumberFormatException e) {
+		}
+		Usage();
+		return 0;
+	}
+
 	private static void Usage() {
-		System.out.println("Usage: tester [-r | --report] [-d | --debug] [--date='yyy/mm/dd hh:mm:ss [AM|PM]' ]" );
+		System.out.println("Usage: tester [-r | --report] [-d | --debug] [--date='yyy/mm/dd hh:mm:ss [AM|PM]' ]" +
+				" [--users=<n>] [--days=<n>] [--taps=<n>] [--threads=<n>] [--durability=sync|nosync|group]" +
+				" [--profile=kiosk|report|default] [--journal]" );
 		System.exit(0);
 	} // end Usage
 
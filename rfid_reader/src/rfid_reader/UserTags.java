@@ -13,6 +13,11 @@
  * 		to be all-numeric. The RFID tags are hex so in ASCII they can have A-F. That means that a student
  * 		ID can collide with an RFID. No reason to chance it. We'll treat them as separate namespaces/lookup tables
  * 
+ * 		The lookup tables are TagIndex's (primitive keys -> ordinal in the users list) rather than
+ * 		HashMap<String, UserTag>. That keeps lookups String-free and the memory small enough to load a
+ * 		district-wide roster on the kiosk. RFIDs that aren't hex can't be read from a card so they're
+ * 		reported and skipped. The odd barcode that isn't all digits goes in a small String map instead.
+ * 
  * 
  * 		
  */
@@ -24,14 +29,37 @@ package rfid_reader;
 import com.opencsv.CSVReader;
 import com.opencsv.CSVReaderBuilder;
 import java.io.FileReader;
-import java.nio.file.Path;
+import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class UserTags {
-	public static Map<String, UserTag> tag_map = new HashMap<String, UserTag>();
-	public static Map<String, UserTag> barcode_map = new HashMap<String, UserTag>();
+	
+	// The current roster. Replaced as a whole (never modified) when the tags file is re-read,
+	// so a lookup sees either the old roster or the new one - never a half built one - without locking
+	private static volatile Roster roster = new Roster();
+	
+	/**
+	 * Everything built from one read of the tags file. Immutable once built. 
+	 */
+	static final class Roster {
+		final List<UserTag> users = new ArrayList<UserTag>();		// Index values are ordinals in this list
+		final TagIndex rfid_index;
+		final TagIndex barcode_index;
+		final Map<String, Integer> barcode_other = new HashMap<String, Integer>();	// Barcodes that aren't all digits
+		
+		Roster() {
+			this(0);
+		}
+		
+		Roster(int expected) {
+			rfid_index = new TagIndex(expected);
+			barcode_index = new TagIndex(expected);
+		}
+	} // end class Roster
 	
 	public static void main(String[] args) {
 
@@ -52,23 +80,56 @@ public class UserTags {
 		}
 		
 	} // end main
+	
     /**
-     * Read the rfid tag to username table from a CSV file
+     * Read the rfid tag to username table from a CSV file and make it the current roster.
+     * If the file can't be read, the current roster is kept. 
      * 
      * @param user_rfid_filename	- name of the file to read
+     * @return						- true if the new roster is in place
      */
-    public static void read_user_tags(String user_rfid_filename)  {
+    public static boolean read_user_tags(String user_rfid_filename)  {
 
     	
-    	Path currentRelativePath = Paths.get("");
-    	String s = currentRelativePath.toAbsolutePath().toString();
-    	Debug.log("Current relative path is: " + s);
+    	Log.debug("Current relative path is: {}", Paths.get("").toAbsolutePath());
     	
     	try {
-	    	//CSVReader reader = new CSVReader(new FileReader(Constants.USER_RFIDTAG_MAPPING));
-	    	CSVReaderBuilder readerBuilder = new CSVReaderBuilder(new FileReader(user_rfid_filename))
-	       											.withSkipLines(1);			// Skip header row!!
-	    	CSVReader reader = readerBuilder.build();
+    		Roster r = load(user_rfid_filename);
+	        roster = r;														// Swap in the new roster
+	        
+	        // Sanity check our indexes
+	        if (Debug.isEnabled()) {
+	        	System.out.println("Users: " + r.users.size() + " RFID tags: " + r.rfid_index.size() + 
+	        			" Student IDs: " + (r.barcode_index.size() + r.barcode_other.size()));
+		        for (UserTag user: r.users) {
+					System.out.println("User data: " + user);
+		        }
+	        }
+	        return true;
+    	} catch (Exception e) {
+    		System.err.println("ERROR: Cannot read RFID tag datebase: " + user_rfid_filename);
+			e.printStackTrace(System.err);
+			return false;
+    	}
+    }
+    
+    /**
+     * Build a roster from the tags CSV file. Doesn't touch the current roster. 
+     * 
+     * @param user_rfid_filename	- name of the file to read
+     * @return						- the new roster
+     * @throws IOException
+     */
+    private static Roster load(String user_rfid_filename) throws IOException {
+    	
+    	Roster r = new Roster(roster.users.size());
+    	
+    	//CSVReader reader = new CSVReader(new FileReader(Constants.USER_RFIDTAG_MAPPING));
+    	CSVReaderBuilder readerBuilder = new CSVReaderBuilder(new FileReader(user_rfid_filename))
+       											.withSkipLines(1);			// Skip header row!!
+    	
+    	// Close the file when we're done. Windows won't let anyone save it while we have it open
+    	try (CSVReader reader = readerBuilder.build()) {
 	
 	    	String[] line;
 	
@@ -77,44 +138,106 @@ public class UserTags {
 	        // 	RFID tag, Barcodem Username (last, first), optional Login Message, optional Logout Message
 	        // The first line DOES have the header row text so we need to skip by it. The constructor
 	        // for CSVReaderBuild conveniently does that. 
-	        // Read in the data and place in a Map for fast tag lookups. 
-	    	// pjw: TODO: We dont' expect dup's in the source CVS file - add hardening as we add to the map
+	        // Read in the data and place in the indexes for fast tag lookups. 
+	    	// We dont' expect dup's in the source CVS file. If there are, the last one wins (and we complain)
+	        long[] key = new long[2];
 	        
 	        while ((line = reader.readNext()) != null) {
-	            Debug.log("RFID: [" + line[0] + "RFID: [" + line[1] + "]\tName: [" + line[2] + "]\tLogin: [" + line[3] + "]\tLogout: [" + line[4] + "]");
+	            final String[] row = line;
+	            Log.debug(() -> "RFID: [" + row[0] + "]\tBarcode: [" + row[1] + "]\tName: [" + row[2] + "]\tLogin: [" + row[3] + "]\tLogout: [" + row[4] + "]");
 	            UserTag user = new UserTag(line[0], line[1], line[2], line[3], line[4]);
-	            tag_map.put(user.getUserTagRFID(), user);			// RFID to user map
-	            barcode_map.put(user.getUserTagBarcode(), user);	// barcode to user map
-	            
+	            int ordinal = r.users.size();
+	            r.users.add(user);
 	            
+	            if (!user.getUserTagRFID().isEmpty()) {							// RFID to user index
+	            	if (!TagIndex.rfidKey(user.getUserTagRFID(), key)) {
+	            		System.err.println("WARNING: RFID tag is not a hex UID. Skipping it: " + user);
+	            	} else if (r.rfid_index.put(key[0], key[1], ordinal) >= 0) {
+	            		System.err.println("WARNING: duplicate RFID tag in " + user_rfid_filename + ": " + user);
+	            	}
+	            }
+	            if (!user.getUserTagBarcode().isEmpty()) {						// barcode to user index
+	            	boolean duplicate;
+	            	if (TagIndex.barcodeKey(user.getUserTagBarcode(), key)) {
+	            		duplicate = r.barcode_index.put(key[0], key[1], ordinal) >= 0;
+	            	} else {
+	            		duplicate = r.barcode_other.put(user.getUserTagBarcode(), ordinal) != null;
+	            	}
+	            	if (duplicate) {
+	            		System.err.println("WARNING: duplicate Student ID in " + user_rfid_filename + ": " + user);
+	            	}
+	            }
 	        }
-		
-	        // Sanity check our map
-	        if (Debug.isEnabled()) {
-		        for(String key: tag_map.keySet()) {
-					System.out.println("key: " + key + " User data: " + tag_map.get(key));
-		        }
-	        }
-    	} catch (Exception e) {
-    		System.err.println("ERROR: Cannot read RFID tag datebase: " + Constants.USER_RFIDTAG_MAPPING_FILENAME);
-			e.printStackTrace(System.err);
     	}
+    	
+    	return r;
+    	
+    } // end load
+    
+    /**
+     * @return - number of users in the current roster
+     */
+    public static int size() {
+    	return roster.users.size();
+    }
+
+    /**
+     * @return - the RFID tags of every user in the current roster that has one (for SimulatedTagReader)
+     */
+    public static List<String> rfidTags() {
+    	List<String> tags = new ArrayList<String>();
+    	long[] key = new long[2];
+    	for (UserTag user : roster.users) {
+    		if (user.getUserTagRFID() != null && TagIndex.rfidKey(user.getUserTagRFID(), key)) {
+    			tags.add(user.getUserTagRFID());
+    		}
+    	}
+    	return tags;
     }
     
     public static UserTag getUser(String uid, Constants.TagType type) {
     	
-    	UserTag user;
+    	Roster r = roster;							// Use one roster for the whole lookup
+    	long[] key = new long[2];
+    	int ordinal = -1;
     	
     	if (type == Constants.TagType.RFID) {
-    		user =  tag_map.get(uid); 
+    		if (TagIndex.rfidKey(uid, key)) {
+    			ordinal = r.rfid_index.get(key[0], key[1]);
+    		}
     	}
     	else {
-    		user = barcode_map.get(uid); 
+    		if (TagIndex.barcodeKey(uid, key)) {
+    			ordinal = r.barcode_index.get(key[0], key[1]);
+    		} else {
+    			Integer other = r.barcode_other.get(uid);
+    			ordinal = (other == null) ? -1 : other;
+    		}
     	}	
     	
-    	return user;
+    	return (ordinal < 0) ? null : r.users.get(ordinal);
     	 
     }
+    
+    /**
+     * @param barcode	- a Student ID that isn't all digits
+     * @return			- true if it's one of the odd ones in the roster
+     */
+    public static boolean isOtherBarcode(String barcode) {
+    	return roster.barcode_other.containsKey(barcode);
+    }
+    
+    /**
+     * Look up an RFID tag read straight from the card without making a String of the UID.
+     * 
+     * @param uid	- UID from the card
+     * @return		- the user or null if the tag isn't in the tag index
+     */
+    public static UserTag getUser(TagUid uid) {
+    	Roster r = roster;
+    	int ordinal = r.rfid_index.get(uid.keyHigh(), uid.keyLow());
+    	return (ordinal < 0) ? null : r.users.get(ordinal);
+    }
 } // end public class UserTags
 
 class UserTag {